@@ -0,0 +1,49 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.BitSet;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// d-separation tests between random pairs of variables, with a tenth of the variables observed.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class BayesBallBenchmark {
+    private static final int PAIRS = 64;
+
+    @Param({"100", "1000"})
+    int numOfVars;
+
+    private Object bayesBall;
+    private final BitSet evidence = new BitSet();
+    private final int[] starts = new int[PAIRS];
+    private final int[] ends = new int[PAIRS];
+
+    @Setup
+    public void setUp() throws Throwable {
+        Object network = (Object) Engine.GENERATE.invokeExact(numOfVars, 3, 2, 8, 42L);
+        bayesBall = (Object) Engine.NEW_BAYES_BALL.invokeExact(network);
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < numOfVars / 10; i++) {
+            evidence.set(random.nextInt(numOfVars));
+        }
+        for (int i = 0; i < PAIRS; i++) {
+            starts[i] = random.nextInt(numOfVars);
+            ends[i] = random.nextInt(numOfVars);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public void isBayesBall(Blackhole blackhole) throws Throwable {
+        for (int i = 0; i < PAIRS; i++) {
+            blackhole.consume((boolean) Engine.IS_BAYES_BALL.invokeExact(bayesBall, starts[i], ends[i], evidence));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.BitSet;
+import java.util.List;
+
+// The engine is in the unnamed package, which source code in a named package can't refer to, and JMH only accepts
+// benchmarks in a named package. So the benchmarks call the engine through these method handles, with the engine
+// types erased to Object. They are static final, so the JIT inlines them like direct calls.
+final class Engine {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    private static final Class<?> BAYES_NET = load("BayesNet");
+    private static final Class<?> FACTOR = load("Factor");
+
+    // NetworkGenerator
+    static final MethodHandle GENERATE = findStatic("NetworkGenerator", "generate",
+            MethodType.methodType(BAYES_NET, int.class, int.class, int.class, int.class, long.class));
+    static final MethodHandle RANDOM_FACTOR = findStatic("NetworkGenerator", "randomFactor",
+            MethodType.methodType(FACTOR, BAYES_NET, int.class, int.class, long.class));
+    static final MethodHandle RANDOM_QUERIES = findStatic("NetworkGenerator", "randomQueries",
+            MethodType.methodType(List.class, BAYES_NET, int.class, int.class, long.class));
+    static final MethodHandle WRITE_XML = findStatic("NetworkGenerator", "writeXml",
+            MethodType.methodType(void.class, BAYES_NET, String.class));
+
+    // loaders
+    static final MethodHandle LOAD_XML = findStatic("XmlNetworkLoader", "load",
+            MethodType.methodType(BAYES_NET, String.class));
+    static final MethodHandle WRITE_BINARY = findStatic("BinaryNetwork", "write",
+            MethodType.methodType(void.class, BAYES_NET, String.class));
+    static final MethodHandle LOAD_BINARY = findStatic("BinaryNetwork", "load",
+            MethodType.methodType(BAYES_NET, String.class));
+
+    // Factor
+    static final MethodHandle JOIN = findVirtual(FACTOR, "JoinFactor", MethodType.methodType(FACTOR, FACTOR));
+    static final MethodHandle ELIMINATE = findVirtual(FACTOR, "Eliminate", MethodType.methodType(FACTOR, int.class));
+    static final MethodHandle REMOVE_EVIDENCE = findVirtual(FACTOR, "removeEvidence",
+            MethodType.methodType(FACTOR, int.class, int.class));
+    static final MethodHandle NORMALIZE = findVirtual(FACTOR, "normalize", MethodType.methodType(int.class));
+    static final MethodHandle SET_VECTORIZED = findStatic("Factor", "setVectorized",
+            MethodType.methodType(void.class, boolean.class));
+
+    // BayesBall
+    static final MethodHandle NEW_BAYES_BALL = findConstructor("BayesBall", MethodType.methodType(void.class, BAYES_NET));
+    static final MethodHandle IS_BAYES_BALL = findVirtual(load("BayesBall"), "isBayesBall",
+            MethodType.methodType(boolean.class, int.class, int.class, BitSet.class));
+
+    // Query
+    static final MethodHandle PARSE_QUERY = findStatic("Query", "parse",
+            MethodType.methodType(load("Query"), String.class, BAYES_NET));
+    static final MethodHandle QUERY_OUTCOME = findVirtual(load("Query"), "getQueryOutcome", MethodType.methodType(int.class));
+    static final MethodHandle EVIDENCE_OUTCOMES = findVirtual(load("Query"), "getEvidenceOutcomes",
+            MethodType.methodType(int[].class));
+
+    // VariableElimination
+    static final MethodHandle NEW_VARIABLE_ELIMINATION = findConstructor("VariableElimination",
+            MethodType.methodType(void.class, BAYES_NET, int.class));
+    static final MethodHandle ANSWER = findVirtual(load("VariableElimination"), "answer",
+            MethodType.methodType(String.class, String.class));
+    static final MethodHandle PREPARE_QUERY = findVirtual(load("VariableElimination"), "prepare",
+            MethodType.methodType(load("PreparedQuery"), load("Query")));
+    static final MethodHandle PREPARED_ANSWER = findVirtual(load("PreparedQuery"), "answer",
+            MethodType.methodType(String.class, int[].class, int.class));
+
+    private Engine() {
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The engine classes aren't on the class path", e);
+        }
+    }
+
+    private static MethodHandle findStatic(String className, String name, MethodType type) {
+        try {
+            return erase(LOOKUP.findStatic(load(className), name, type));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findVirtual(Class<?> owner, String name, MethodType type) {
+        try {
+            return erase(LOOKUP.findVirtual(owner, name, type));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findConstructor(String className, MethodType type) {
+        try {
+            return erase(LOOKUP.findConstructor(load(className), type));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Replace every engine class in the type by Object, so that the callers can use invokeExact.
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (type.parameterType(i).getPackageName().isEmpty() && !type.parameterType(i).isPrimitive()) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (type.returnType().getPackageName().isEmpty() && !type.returnType().isPrimitive()) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// The table kernels on a binary factor of 'numOfVars' variables. It is joined with a factor of half as many
+// variables, half of which it shares, and the eliminated and observed variable is in its middle.
+// Tables of more than Factor.getParallelThreshold() rows are split across the common ForkJoinPool.
+// 'vectorized' switches between the Vector API kernels and the scalar ones, the forks run with the module.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules=jdk.incubator.vector"})
+public class FactorBenchmark {
+    @Param({"8", "12", "16"})
+    int numOfVars;
+
+    @Param({"true", "false"})
+    boolean vectorized;
+
+    private Object left;
+    private Object right;
+    private int middleVarId;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Engine.SET_VECTORIZED.invokeExact(vectorized);
+        Object network = (Object) Engine.GENERATE.invokeExact(2 * numOfVars, 2, 2, 4, 42L);
+        left = (Object) Engine.RANDOM_FACTOR.invokeExact(network, 0, numOfVars, 1L);
+        right = (Object) Engine.RANDOM_FACTOR.invokeExact(network, 3 * numOfVars / 4, numOfVars / 2, 2L);
+        middleVarId = numOfVars / 2;
+    }
+
+    @Benchmark
+    public Object join() throws Throwable {
+        return (Object) Engine.JOIN.invokeExact(left, right);
+    }
+
+    @Benchmark
+    public Object eliminate() throws Throwable {
+        return (Object) Engine.ELIMINATE.invokeExact(left, middleVarId);
+    }
+
+    @Benchmark
+    public Object removeEvidence() throws Throwable {
+        return (Object) Engine.REMOVE_EVIDENCE.invokeExact(left, middleVarId, 1);
+    }
+
+    // in place: the factor stays normalized, so every call does the same work
+    @Benchmark
+    public int normalize() throws Throwable {
+        return (int) Engine.NORMALIZE.invokeExact(left);
+    }
+}
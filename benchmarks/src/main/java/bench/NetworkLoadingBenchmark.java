@@ -0,0 +1,47 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Loading a generated network from XMLBIF and from its compiled binary form.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class NetworkLoadingBenchmark {
+    @Param({"100", "1000"})
+    int numOfVars;
+
+    private File xmlFile;
+    private File binaryFile;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Object network = (Object) Engine.GENERATE.invokeExact(numOfVars, 3, 3, 8, 42L);
+        xmlFile = File.createTempFile("network", ".xml");
+        binaryFile = File.createTempFile("network", ".bnet");
+        Engine.WRITE_XML.invokeExact(network, xmlFile.getPath());
+        Engine.WRITE_BINARY.invokeExact(network, binaryFile.getPath());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        xmlFile.delete();
+        binaryFile.delete();
+    }
+
+    @Benchmark
+    public Object loadXml() throws Throwable {
+        return (Object) Engine.LOAD_XML.invokeExact(xmlFile.getPath());
+    }
+
+    @Benchmark
+    public Object loadBinary() throws Throwable {
+        return (Object) Engine.LOAD_BINARY.invokeExact(binaryFile.getPath());
+    }
+}
@@ -0,0 +1,66 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end P(X=x|e) queries with two evidence variables and a planned elimination order.
+// The answer cache is disabled, so every query runs the full inference. 'prepared' answers the same queries
+// through plans prepared from them in the setup, so only the parsing and planning differ.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules=jdk.incubator.vector"})
+public class VariableEliminationBenchmark {
+    private static final int QUERIES = 64;
+
+    @Param({"50", "200"})
+    int numOfVars;
+
+    @Param({"4", "8"})
+    int treewidth;
+
+    private Object variableElimination;
+    private String[] queries;
+    private Object[] plans;
+    private int[][] evidenceOutcomes;
+    private int[] queryOutcomes;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Object network = (Object) Engine.GENERATE.invokeExact(numOfVars, 3, 2, treewidth, 42L);
+        variableElimination = (Object) Engine.NEW_VARIABLE_ELIMINATION.invokeExact(network, 0);
+        List<?> generated = (List<?>) Engine.RANDOM_QUERIES.invokeExact(network, QUERIES, 2, 7L);
+        queries = generated.toArray(new String[0]);
+
+        plans = new Object[QUERIES];
+        evidenceOutcomes = new int[QUERIES][];
+        queryOutcomes = new int[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            Object query = (Object) Engine.PARSE_QUERY.invokeExact(queries[q], network);
+            plans[q] = (Object) Engine.PREPARE_QUERY.invokeExact(variableElimination, query);
+            evidenceOutcomes[q] = (int[]) Engine.EVIDENCE_OUTCOMES.invokeExact(query);
+            queryOutcomes[q] = (int) Engine.QUERY_OUTCOME.invokeExact(query);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public void answer(Blackhole blackhole) throws Throwable {
+        for (String query : queries) {
+            blackhole.consume((String) Engine.ANSWER.invokeExact(variableElimination, query));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public void prepared(Blackhole blackhole) throws Throwable {
+        for (int q = 0; q < QUERIES; q++) {
+            blackhole.consume((String) Engine.PREPARED_ANSWER.invokeExact(plans[q], evidenceOutcomes[q], queryOutcomes[q]));
+        }
+    }
+}
@@ -0,0 +1,394 @@
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Sampling engine for networks whose elimination width is too large for exact inference.
+// It works on the CPTs of the network directly and never builds a factor larger than a CPT.
+// The samples are drawn by independent chains, each with its own SplittableRandom stream split from the seed, in rounds
+// of 'batchSize' samples per chain that run in parallel on the common ForkJoinPool. After every round the estimate
+// and its 95% confidence interval are updated; sampling stops when the sample budget is spent or the half-width
+// of the interval is below the target. The result only depends on the seed and the number of chains.
+public class ApproximateInference {
+    public enum Method {
+        LIKELIHOOD_WEIGHTING, // forward samples with the evidence clamped, weighted by its likelihood
+        GIBBS                 // each chain resamples the unobserved variables from their Markov blanket
+    }
+
+    // P(X=x|e) with the half-width of its 95% confidence interval.
+    public static class Estimate {
+        final double probability;
+        final double errorBound;
+        final long numOfSamples;
+
+        Estimate(double probability, double errorBound, long numOfSamples) {
+            this.probability = probability;
+            this.errorBound = errorBound;
+            this.numOfSamples = numOfSamples;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.5f,%.5f,%d", probability, errorBound, numOfSamples);
+        }
+    }
+
+    private static final double Z_95 = 1.959964;
+
+    private final BayesNet network;
+    private final int[] topologicalOrder;
+    // per variable: the ids and strides of the variables of its CPT, and the CPT itself
+    private final int[][] cptVarIds;
+    private final int[][] cptStrides;
+    private final double[][] cptTables;
+    private final int[][] childIds;
+
+    private Method method = Method.LIKELIHOOD_WEIGHTING;
+    private long sampleBudget = 100_000;
+    private double targetErrorBound = 0.0; // 0 spends the whole budget
+    private int numOfChains = Runtime.getRuntime().availableProcessors();
+    private int batchSize = 1000;
+    private int burnIn = 100; // Gibbs sweeps dropped at the start of every chain
+    private long seed = 42;
+
+    public ApproximateInference(BayesNet network) {
+        this.network = network;
+        int numOfVars = network.getNumberOfVariables();
+        cptVarIds = new int[numOfVars][];
+        cptStrides = new int[numOfVars][];
+        cptTables = new double[numOfVars][];
+        childIds = new int[numOfVars][];
+        for (int id = 0; id < numOfVars; id++) {
+            Factor cpt = network.getCpt(id);
+            cptVarIds[id] = new int[cpt.variables.size()];
+            for (int i = 0; i < cptVarIds[id].length; i++) {
+                cptVarIds[id][i] = cpt.variables.get(i).id;
+            }
+            cptStrides[id] = cpt.strides;
+            cptTables[id] = cpt.table;
+            List<Variable> children = network.getVariable(id).children;
+            childIds[id] = new int[children.size()];
+            for (int i = 0; i < childIds[id].length; i++) {
+                childIds[id][i] = children.get(i).id;
+            }
+        }
+        topologicalOrder = topologicalOrder(network);
+    }
+
+    public void setMethod(Method method) {
+        this.method = method;
+    }
+
+    public void setSampleBudget(long sampleBudget) {
+        this.sampleBudget = sampleBudget;
+    }
+
+    // Stop as soon as the half-width of the 95% confidence interval is at most this.
+    public void setTargetErrorBound(double targetErrorBound) {
+        this.targetErrorBound = targetErrorBound;
+    }
+
+    public void setNumOfChains(int numOfChains) {
+        if (numOfChains < 1) {
+            throw new IllegalArgumentException("At least one chain is needed");
+        }
+        this.numOfChains = numOfChains;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setBurnIn(int burnIn) {
+        this.burnIn = burnIn;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public String answer(String query) {
+        return estimate(Query.parse(query, network)).toString();
+    }
+
+    public Estimate estimate(Query query) {
+        int numOfVars = network.getNumberOfVariables();
+        int[] evidence = new int[numOfVars]; // the observed outcome of every variable, -1 if unobserved
+        Arrays.fill(evidence, -1);
+        for (int i = 0; i < query.evidenceIds.length; i++) {
+            evidence[query.evidenceIds[i]] = query.evidenceOutcomes[i];
+        }
+        int queryId = query.queryVar.id;
+        if (evidence[queryId] >= 0) {
+            return new Estimate(evidence[queryId] == query.queryOutcome ? 1.0 : 0.0, 0.0, 0);
+        }
+
+        SplittableRandom root = new SplittableRandom(seed);
+        List<Chain> chains = new ArrayList<>();
+        for (int c = 0; c < numOfChains; c++) {
+            chains.add(method == Method.GIBBS
+                    ? new GibbsChain(root.split(), evidence, queryId, query.queryOutcome)
+                    : new WeightingChain(root.split(), evidence, queryId, query.queryOutcome));
+        }
+
+        Estimate estimate = new Estimate(Double.NaN, Double.POSITIVE_INFINITY, 0);
+        while (estimate.numOfSamples < sampleBudget && !(targetErrorBound > 0 && estimate.errorBound <= targetErrorBound)) {
+            int samples = (int) Math.min(batchSize, Math.max(1, (sampleBudget - estimate.numOfSamples) / numOfChains));
+            runRound(chains, samples);
+            estimate = method == Method.GIBBS ? combineChainMeans(chains) : combineWeights(chains);
+        }
+        return estimate;
+    }
+
+    private static void runRound(List<Chain> chains, int samples) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Chain chain : chains) {
+            tasks.add(() -> {
+                chain.sample(samples);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Likelihood weighting: the ratio of the weights where X=x to all the weights, with its variance from the
+    // effective sample size (sum w)^2 / sum w^2.
+    private static Estimate combineWeights(List<Chain> chains) {
+        double weights = 0.0;
+        double matchingWeights = 0.0;
+        double squaredWeights = 0.0;
+        long numOfSamples = 0;
+        for (Chain chain : chains) {
+            WeightingChain weighting = (WeightingChain) chain;
+            weights += weighting.weights;
+            matchingWeights += weighting.matchingWeights;
+            squaredWeights += weighting.squaredWeights;
+            numOfSamples += weighting.numOfSamples;
+        }
+        if (weights == 0.0) { // no sample was consistent with the evidence yet
+            return new Estimate(Double.NaN, Double.POSITIVE_INFINITY, numOfSamples);
+        }
+        double probability = matchingWeights / weights;
+        double effectiveSamples = weights * weights / squaredWeights;
+        double errorBound = Z_95 * Math.sqrt(probability * (1 - probability) / effectiveSamples);
+        return new Estimate(probability, errorBound, numOfSamples);
+    }
+
+    // Gibbs sampling: the samples of a chain are correlated, so the interval comes from the spread of the
+    // independent chains' means. With a single chain it falls back to the binomial variance of its samples.
+    private Estimate combineChainMeans(List<Chain> chains) {
+        double sum = 0.0;
+        long numOfSamples = 0;
+        for (Chain chain : chains) {
+            GibbsChain gibbs = (GibbsChain) chain;
+            sum += gibbs.mean();
+            numOfSamples += gibbs.numOfSamples;
+        }
+        double probability = sum / chains.size();
+        double variance;
+        if (chains.size() > 1) {
+            double squares = 0.0;
+            for (Chain chain : chains) {
+                double deviation = ((GibbsChain) chain).mean() - probability;
+                squares += deviation * deviation;
+            }
+            variance = squares / (chains.size() - 1) / chains.size();
+        } else {
+            variance = probability * (1 - probability) / numOfSamples;
+        }
+        return new Estimate(probability, Z_95 * Math.sqrt(variance), numOfSamples);
+    }
+
+    // P(var = state[var] | the outcomes of its parents in 'state')
+    private double cptValue(int varId, int[] state) {
+        int[] ids = cptVarIds[varId];
+        int[] strides = cptStrides[varId];
+        int row = 0;
+        for (int i = 0; i < ids.length; i++) {
+            row += strides[i] * state[ids[i]];
+        }
+        return cptTables[varId][row];
+    }
+
+    // Draw an outcome of 'varId' from its CPT given the outcomes of its parents in 'state'.
+    private int sampleFromCpt(int varId, int[] state, SplittableRandom random) {
+        int cardinality = network.getVariable(varId).numberOfOutcomes;
+        double u = random.nextDouble();
+        int outcome = 0;
+        for (; outcome < cardinality - 1; outcome++) {
+            state[varId] = outcome;
+            u -= cptValue(varId, state);
+            if (u < 0) {
+                break;
+            }
+        }
+        return outcome;
+    }
+
+    private abstract class Chain {
+        final SplittableRandom random;
+        final int[] evidence;
+        final int queryId;
+        final int queryOutcome;
+        final int[] state = new int[network.getNumberOfVariables()];
+        long numOfSamples;
+
+        Chain(SplittableRandom random, int[] evidence, int queryId, int queryOutcome) {
+            this.random = random;
+            this.evidence = evidence;
+            this.queryId = queryId;
+            this.queryOutcome = queryOutcome;
+        }
+
+        abstract void sample(int samples);
+
+        // Sample the unobserved variables in topological order, and return the likelihood of the evidence.
+        double forwardSample() {
+            double weight = 1.0;
+            for (int id : topologicalOrder) {
+                if (evidence[id] >= 0) {
+                    state[id] = evidence[id];
+                    weight *= cptValue(id, state);
+                } else {
+                    state[id] = sampleFromCpt(id, state, random);
+                }
+            }
+            return weight;
+        }
+    }
+
+    private class WeightingChain extends Chain {
+        double weights;
+        double matchingWeights;
+        double squaredWeights;
+
+        WeightingChain(SplittableRandom random, int[] evidence, int queryId, int queryOutcome) {
+            super(random, evidence, queryId, queryOutcome);
+        }
+
+        @Override
+        void sample(int samples) {
+            for (int s = 0; s < samples; s++) {
+                double weight = forwardSample();
+                weights += weight;
+                squaredWeights += weight * weight;
+                if (state[queryId] == queryOutcome) {
+                    matchingWeights += weight;
+                }
+            }
+            numOfSamples += samples;
+        }
+    }
+
+    private class GibbsChain extends Chain {
+        private final double[] conditional; // scratch for the distribution of one variable given its Markov blanket
+        private double sum; // sum over the sweeps of P(X=x | Markov blanket of X), which has a lower variance than counting X=x
+        private boolean burnedIn = false;
+
+        GibbsChain(SplittableRandom random, int[] evidence, int queryId, int queryOutcome) {
+            super(random, evidence, queryId, queryOutcome);
+            int maxCardinality = 1;
+            for (Variable var : network.variables) {
+                maxCardinality = Math.max(maxCardinality, var.numberOfOutcomes);
+            }
+            conditional = new double[maxCardinality];
+        }
+
+        double mean() {
+            return numOfSamples == 0 ? 0.0 : sum / numOfSamples;
+        }
+
+        @Override
+        void sample(int samples) {
+            if (!burnedIn) {
+                // start from a forward sample that is consistent with the evidence, if one is found quickly
+                int attempts = 1;
+                while (forwardSample() == 0.0 && attempts < 1000) {
+                    attempts++;
+                }
+                for (int sweep = 0; sweep < burnIn; sweep++) {
+                    sweep();
+                }
+                burnedIn = true;
+            }
+            for (int s = 0; s < samples; s++) {
+                sum += sweep();
+            }
+            numOfSamples += samples;
+        }
+
+        // Resample every unobserved variable once, and return P(X=x | Markov blanket of X) at the time X was resampled.
+        private double sweep() {
+            double queryProbability = 0.0;
+            for (int id : topologicalOrder) {
+                if (evidence[id] >= 0) {
+                    continue;
+                }
+                int cardinality = network.getVariable(id).numberOfOutcomes;
+                double total = 0.0;
+                for (int outcome = 0; outcome < cardinality; outcome++) {
+                    state[id] = outcome;
+                    double p = cptValue(id, state);
+                    for (int child : childIds[id]) {
+                        p *= cptValue(child, state);
+                    }
+                    conditional[outcome] = p;
+                    total += p;
+                }
+                if (total == 0.0) { // the rest of the state rules out every outcome, keep the current one random
+                    state[id] = random.nextInt(cardinality);
+                    continue;
+                }
+                if (id == queryId) {
+                    queryProbability = conditional[queryOutcome] / total;
+                }
+                double u = random.nextDouble() * total;
+                int outcome = 0;
+                for (; outcome < cardinality - 1; outcome++) {
+                    u -= conditional[outcome];
+                    if (u < 0) {
+                        break;
+                    }
+                }
+                state[id] = outcome;
+            }
+            return queryProbability;
+        }
+    }
+
+    // Kahn's algorithm, the ids of the variables with every parent before its children.
+    private static int[] topologicalOrder(BayesNet network) {
+        int numOfVars = network.getNumberOfVariables();
+        int[] missingParents = new int[numOfVars];
+        int[] order = new int[numOfVars];
+        int head = 0;
+        int tail = 0;
+        for (int id = 0; id < numOfVars; id++) {
+            missingParents[id] = network.getVariable(id).parents.size();
+            if (missingParents[id] == 0) {
+                order[tail++] = id;
+            }
+        }
+        while (head < tail) {
+            for (Variable child : network.getVariable(order[head++]).children) {
+                if (--missingParents[child.id] == 0) {
+                    order[tail++] = child.id;
+                }
+            }
+        }
+        if (tail != numOfVars) {
+            throw new IllegalArgumentException("The network has a cycle");
+        }
+        return order;
+    }
+}
@@ -0,0 +1,425 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Arithmetic circuit of a network: the network polynomial, sum over all the assignments x of the product of the
+// evidence indicators of x and the CPT parameters of x, as a DAG of sum and product nodes over indicator and parameter
+// leaves. It is compiled once by running variable elimination symbolically, so it has about as many nodes as the
+// tables variable elimination would fill for the whole network.
+// Evaluating it for a set of evidence (the indicators of the outcomes that contradict it are 0) is one upward pass
+// giving P(e), and one downward pass of partial derivatives gives P(X=x, e) for every variable at once. A single
+// posterior takes a second upward pass instead, with X=x added to the evidence.
+// Every indicator is one leaf, shared by all the rows of the CPT that mention its outcome.
+// The nodes are stored in flat arrays, each node after its children.
+public class ArithmeticCircuit {
+    static final int MAGIC = 0x424E4143; // "BNAC"
+    static final int VERSION = 1;
+
+    static final byte INDICATOR = 0;
+    static final byte PARAMETER = 1;
+    static final byte PRODUCT = 2;
+    static final byte SUM = 3;
+
+    private final BayesNet network;
+    private final int[] indicatorStart; // per variable, the index of the indicator of its first outcome
+    private final byte[] types;
+    private final int[] childStart; // the children of node n are children[childStart[n]]..children[childStart[n+1]-1]
+    private final int[] children;
+    private final double[] leafValues; // the parameter of a PARAMETER node, unused for the other nodes
+    private final int[] leafIndicators; // the indicator of an INDICATOR node, unused for the other nodes
+    private final int root;
+
+    private ArithmeticCircuit(BayesNet network, byte[] types, int[] childStart, int[] children, double[] leafValues,
+                              int[] leafIndicators) {
+        this.network = network;
+        this.indicatorStart = indicatorStarts(network);
+        this.types = types;
+        this.childStart = childStart;
+        this.children = children;
+        this.leafValues = leafValues;
+        this.leafIndicators = leafIndicators;
+        this.root = types.length - 1;
+    }
+
+    // Compile a network offline: java ArithmeticCircuit alarm_net.xml alarm_net.ac
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage: java ArithmeticCircuit <network.xml|network.bnet> <circuit.ac>");
+            return;
+        }
+        BayesNet network = BinaryNetwork.isBinary(args[0]) ? BinaryNetwork.load(args[0]) : XmlNetworkLoader.load(args[0]);
+        network.initialize();
+        ArithmeticCircuit circuit = compile(network);
+        circuit.write(args[1]);
+        System.out.println("Compiled " + circuit.getNumberOfNodes() + " nodes into " + args[1]);
+    }
+
+    public int getNumberOfNodes() {
+        return types.length;
+    }
+
+    public static ArithmeticCircuit compile(BayesNet network) {
+        return new Compiler(network).compile();
+    }
+
+    // Builds the circuit by variable elimination on symbolic factors, whose tables hold node ids instead of numbers.
+    private static class Compiler {
+        private final BayesNet network;
+        private byte[] types = new byte[64];
+        private int[] childStart = new int[65];
+        private int[] children = new int[128];
+        private double[] leafValues = new double[64];
+        private int[] leafIndicators = new int[64];
+        private int numOfNodes;
+        private int numOfChildren;
+
+        Compiler(BayesNet network) {
+            this.network = network;
+        }
+
+        ArithmeticCircuit compile() {
+            int numOfVars = network.getNumberOfVariables();
+            int[] indicatorStart = indicatorStarts(network);
+            // the leaf of the indicator of X=x by [X][x], added when a row first needs it
+            int[][] indicatorLeaves = new int[numOfVars][];
+            for (int id = 0; id < numOfVars; id++) {
+                indicatorLeaves[id] = new int[network.getVariable(id).numberOfOutcomes];
+                Arrays.fill(indicatorLeaves[id], -1);
+            }
+
+            // the symbolic CPT of X: every row is its parameter times the indicator of its outcome of X
+            List<Factor> factors = new ArrayList<>();
+            List<int[]> tables = new ArrayList<>();
+            List<List<Variable>> scopes = new ArrayList<>();
+            for (int id = 0; id < numOfVars; id++) {
+                Factor cpt = network.getCpt(id);
+                int varIndex = cpt.indexOfVariable(id);
+                int[] nodes = new int[cpt.table.length];
+                for (int row = 0; row < nodes.length; row++) {
+                    int outcome = cpt.outcomeAt(row, varIndex);
+                    if (indicatorLeaves[id][outcome] < 0) {
+                        indicatorLeaves[id][outcome] = addLeaf(INDICATOR, 0.0, indicatorStart[id] + outcome);
+                    }
+                    int indicator = indicatorLeaves[id][outcome];
+                    nodes[row] = addNode(PRODUCT, addLeaf(PARAMETER, cpt.table[row], -1), indicator);
+                }
+                factors.add(cpt);
+                tables.add(nodes);
+                scopes.add(cpt.variables);
+            }
+
+            int[] order = new EliminationOrder(network, EliminationOrder.Heuristic.MIN_FILL)
+                    .planScopes(scopes, new BitSet(numOfVars));
+            for (int varId : order) {
+                List<Factor> joinedFactors = new ArrayList<>();
+                List<int[]> joinedTables = new ArrayList<>();
+                for (int i = factors.size() - 1; i >= 0; i--) {
+                    if (factors.get(i).contains(varId)) {
+                        joinedFactors.addFirst(factors.remove(i));
+                        joinedTables.addFirst(tables.remove(i));
+                    }
+                }
+                if (joinedFactors.isEmpty()) {
+                    continue;
+                }
+                Factor joined = joinedFactors.getFirst();
+                int[] joinedTable = joinedTables.getFirst();
+                for (int i = 1; i < joinedFactors.size(); i++) {
+                    Factor next = joinedFactors.get(i);
+                    List<Variable> vars = new ArrayList<>(joined.variables); // ordered like JoinFactor orders them
+                    for (Variable var : next.variables) {
+                        if (!vars.contains(var)) {
+                            vars.add(var);
+                        }
+                    }
+                    Factor product = new Factor(vars); // only its variables and strides are used
+                    joinedTable = join(joined, joinedTable, next, joinedTables.get(i), product);
+                    joined = product;
+                }
+                Factor eliminated = new Factor(joined.variables.stream().filter(var -> var.id != varId).toList());
+                factors.add(eliminated);
+                tables.add(sumOut(joined, joinedTable, joined.indexOfVariable(varId), eliminated));
+            }
+
+            // what is left are factors without variables, the root is their product
+            int rootNode = tables.getFirst()[0];
+            for (int i = 1; i < tables.size(); i++) {
+                rootNode = addNode(PRODUCT, rootNode, tables.get(i)[0]);
+            }
+            if (rootNode != numOfNodes - 1) { // the root must be the last node
+                rootNode = addNode(PRODUCT, rootNode);
+            }
+            return new ArithmeticCircuit(network, Arrays.copyOf(types, numOfNodes), Arrays.copyOf(childStart, numOfNodes + 1),
+                    Arrays.copyOf(children, numOfChildren), Arrays.copyOf(leafValues, numOfNodes),
+                    Arrays.copyOf(leafIndicators, numOfNodes));
+        }
+
+        private int[] join(Factor f1, int[] table1, Factor f2, int[] table2, Factor result) {
+            int[] strides1 = f1.stridesOver(result.variables);
+            int[] strides2 = f2.stridesOver(result.variables);
+            int[] nodes = new int[result.getTableSize()];
+            for (int row = 0; row < nodes.length; row++) {
+                int row1 = 0;
+                int row2 = 0;
+                for (int k = 0; k < strides1.length; k++) {
+                    int outcome = result.outcomeAt(row, k);
+                    row1 += outcome * strides1[k];
+                    row2 += outcome * strides2[k];
+                }
+                nodes[row] = addNode(PRODUCT, table1[row1], table2[row2]);
+            }
+            return nodes;
+        }
+
+        private int[] sumOut(Factor factor, int[] table, int varIndex, Factor result) {
+            int stride = factor.strides[varIndex];
+            int cardinality = factor.variables.get(varIndex).numberOfOutcomes;
+            int block = stride * cardinality;
+            int[] nodes = new int[result.getTableSize()];
+            int[] terms = new int[cardinality];
+            for (int reducedRow = 0; reducedRow < nodes.length; reducedRow++) {
+                int firstRow = (reducedRow / stride) * block + reducedRow % stride;
+                for (int outcome = 0; outcome < cardinality; outcome++) {
+                    terms[outcome] = table[firstRow + outcome * stride];
+                }
+                nodes[reducedRow] = addNode(SUM, terms);
+            }
+            return nodes;
+        }
+
+        private int addLeaf(byte type, double value, int indicator) {
+            int node = addNode(type);
+            leafValues[node] = value;
+            leafIndicators[node] = indicator;
+            return node;
+        }
+
+        private int addNode(byte type, int... nodeChildren) {
+            if (numOfNodes == types.length) {
+                types = Arrays.copyOf(types, 2 * numOfNodes);
+                childStart = Arrays.copyOf(childStart, 2 * numOfNodes + 1);
+                leafValues = Arrays.copyOf(leafValues, 2 * numOfNodes);
+                leafIndicators = Arrays.copyOf(leafIndicators, 2 * numOfNodes);
+            }
+            while (numOfChildren + nodeChildren.length > children.length) {
+                children = Arrays.copyOf(children, 2 * children.length);
+            }
+            types[numOfNodes] = type;
+            System.arraycopy(nodeChildren, 0, children, numOfChildren, nodeChildren.length);
+            numOfChildren += nodeChildren.length;
+            childStart[numOfNodes + 1] = numOfChildren;
+            return numOfNodes++;
+        }
+    }
+
+    private static int[] indicatorStarts(BayesNet network) {
+        int[] starts = new int[network.getNumberOfVariables() + 1];
+        for (int id = 0; id < network.getNumberOfVariables(); id++) {
+            starts[id + 1] = starts[id] + network.getVariable(id).numberOfOutcomes;
+        }
+        return starts;
+    }
+
+    // The posterior of every variable given the evidence, or null if the evidence has probability 0.
+    public double[][] marginals(int[] evidenceIds, int[] evidenceOutcomes) {
+        double[] indicators = indicators(evidenceIds, evidenceOutcomes);
+        double[] values = upward(indicators);
+        double probabilityOfEvidence = values[root];
+        if (probabilityOfEvidence == 0.0) {
+            return null;
+        }
+        double[] indicatorDerivatives = downward(values);
+
+        // the polynomial is linear in every indicator, so its derivative by the indicator of X=x is P(X=x, e without X)
+        double[][] marginals = new double[network.getNumberOfVariables()][];
+        for (int id = 0; id < marginals.length; id++) {
+            int cardinality = network.getVariable(id).numberOfOutcomes;
+            marginals[id] = new double[cardinality];
+            double total = 0.0;
+            for (int outcome = 0; outcome < cardinality; outcome++) {
+                int indicator = indicatorStart[id] + outcome;
+                marginals[id][outcome] = indicatorDerivatives[indicator] * indicators[indicator];
+                total += marginals[id][outcome];
+            }
+            for (int outcome = 0; outcome < cardinality; outcome++) {
+                marginals[id][outcome] /= total;
+            }
+        }
+        return marginals;
+    }
+
+    // The value of every indicator: 0 for the outcomes that contradict the evidence, 1 for the others.
+    private double[] indicators(int[] evidenceIds, int[] evidenceOutcomes) {
+        double[] indicators = new double[indicatorStart[indicatorStart.length - 1]];
+        Arrays.fill(indicators, 1.0);
+        for (int i = 0; i < evidenceIds.length; i++) {
+            observe(indicators, evidenceIds[i], evidenceOutcomes[i]);
+        }
+        return indicators;
+    }
+
+    private void observe(double[] indicators, int varId, int observedOutcome) {
+        for (int outcome = 0; outcome < network.getVariable(varId).numberOfOutcomes; outcome++) {
+            if (outcome != observedOutcome) {
+                indicators[indicatorStart[varId] + outcome] = 0.0;
+            }
+        }
+    }
+
+    // The value of every node, children first.
+    private double[] upward(double[] indicators) {
+        double[] values = new double[types.length];
+        for (int node = 0; node < types.length; node++) {
+            switch (types[node]) {
+                case INDICATOR -> values[node] = indicators[leafIndicators[node]];
+                case PARAMETER -> values[node] = leafValues[node];
+                case PRODUCT -> {
+                    double product = 1.0;
+                    for (int c = childStart[node]; c < childStart[node + 1]; c++) {
+                        product *= values[children[c]];
+                    }
+                    values[node] = product;
+                }
+                default -> {
+                    double sum = 0.0;
+                    for (int c = childStart[node]; c < childStart[node + 1]; c++) {
+                        sum += values[children[c]];
+                    }
+                    values[node] = sum;
+                }
+            }
+        }
+        return values;
+    }
+
+    // The partial derivative of the root by every indicator, parents first. The derivative by a child of a product
+    // is the product of the other children, taken from prefix and suffix products so that zeros need no division.
+    private double[] downward(double[] values) {
+        double[] derivatives = new double[types.length];
+        double[] indicatorDerivatives = new double[indicatorStart[indicatorStart.length - 1]];
+        double[] suffix = new double[16];
+        derivatives[root] = 1.0;
+        for (int node = root; node >= 0; node--) {
+            double derivative = derivatives[node];
+            int first = childStart[node];
+            int last = childStart[node + 1];
+            switch (types[node]) {
+                case INDICATOR -> indicatorDerivatives[leafIndicators[node]] += derivative;
+                case PARAMETER -> {
+                }
+                case PRODUCT -> {
+                    if (derivative == 0.0) {
+                        continue;
+                    }
+                    if (last - first + 1 > suffix.length) {
+                        suffix = new double[2 * (last - first + 1)];
+                    }
+                    suffix[last - first] = 1.0;
+                    for (int c = last - 1; c >= first; c--) {
+                        suffix[c - first] = suffix[c - first + 1] * values[children[c]];
+                    }
+                    double prefix = 1.0;
+                    for (int c = first; c < last; c++) {
+                        derivatives[children[c]] += derivative * prefix * suffix[c - first + 1];
+                        prefix *= values[children[c]];
+                    }
+                }
+                default -> {
+                    for (int c = first; c < last; c++) {
+                        derivatives[children[c]] += derivative;
+                    }
+                }
+            }
+        }
+        return indicatorDerivatives;
+    }
+
+    // Answers the query in the format "probability", NaN if the evidence is impossible.
+    public String answer(String query) {
+        return answer(Query.parse(query, network));
+    }
+
+    // P(X=x | e) is P(X=x, e) / P(e), the values of the root without and with the query outcome observed. Two upward
+    // passes are cheaper than the downward pass, which computes the posteriors of all the variables.
+    public String answer(Query query) {
+        double[] indicators = indicators(query.evidenceIds, query.evidenceOutcomes);
+        double probabilityOfEvidence = upward(indicators)[root];
+        if (probabilityOfEvidence == 0.0) {
+            return String.format("%.5f", Double.NaN);
+        }
+        observe(indicators, query.queryVar.id, query.queryOutcome);
+        double probability = upward(indicators)[root] / probabilityOfEvidence;
+        return String.format("%.5f", probability);
+    }
+
+    // Layout (big-endian): int MAGIC, int VERSION, int numOfVars, the number of outcomes of every variable,
+    // int numOfNodes, int numOfChildren, the node types as bytes, childStart, children, leafValues, leafIndicators.
+    public void write(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(network.getNumberOfVariables());
+            for (int id = 0; id < network.getNumberOfVariables(); id++) {
+                out.writeInt(network.getVariable(id).numberOfOutcomes);
+            }
+            out.writeInt(types.length);
+            out.writeInt(children.length);
+            out.write(types);
+            for (int start : childStart) {
+                out.writeInt(start);
+            }
+            for (int child : children) {
+                out.writeInt(child);
+            }
+            for (double value : leafValues) {
+                out.writeDouble(value);
+            }
+            for (int indicator : leafIndicators) {
+                out.writeInt(indicator);
+            }
+        }
+    }
+
+    // Load a circuit compiled for the given network.
+    public static ArithmeticCircuit load(String path, BayesNet network) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException(path + " is not a compiled circuit");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported compiled circuit version " + version);
+            }
+            int numOfVars = buffer.getInt();
+            boolean matches = numOfVars == network.getNumberOfVariables();
+            for (int id = 0; id < numOfVars; id++) {
+                int numberOfOutcomes = buffer.getInt();
+                matches = matches && network.getVariable(id).numberOfOutcomes == numberOfOutcomes;
+            }
+            if (!matches) {
+                throw new IllegalArgumentException(path + " was compiled for another network");
+            }
+
+            int numOfNodes = buffer.getInt();
+            int numOfChildren = buffer.getInt();
+            byte[] types = new byte[numOfNodes];
+            int[] childStart = new int[numOfNodes + 1];
+            int[] children = new int[numOfChildren];
+            double[] leafValues = new double[numOfNodes];
+            int[] leafIndicators = new int[numOfNodes];
+            buffer.get(types);
+            buffer.asIntBuffer().get(childStart);
+            buffer.position(buffer.position() + childStart.length * Integer.BYTES);
+            buffer.asIntBuffer().get(children);
+            buffer.position(buffer.position() + children.length * Integer.BYTES);
+            buffer.asDoubleBuffer().get(leafValues);
+            buffer.position(buffer.position() + leafValues.length * Double.BYTES);
+            buffer.asIntBuffer().get(leafIndicators);
+            return new ArithmeticCircuit(network, types, childStart, children, leafValues, leafIndicators);
+        }
+    }
+}
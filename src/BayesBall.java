@@ -1,5 +1,8 @@
 import java.util.*;
 
+// Shachter's Bayes-Ball: a ball starts at the source and moves along the edges; evidence nodes stop it when it
+// comes from a child and bounce it back to their parents when it comes from a parent.
+// Every node the ball reaches without being observed is d-connected to the source.
 public class BayesBall {
     private final BayesNet network;
 
@@ -8,76 +11,107 @@ public class BayesBall {
     }
 
     public boolean isBayesBall(String startVar, String endVar, ArrayList<String> evidenceNames) {
-        return isBayesBall(network.getVariable(startVar), network.getVariable(endVar), evidenceNames);
+        BitSet evidence = new BitSet(network.getNumberOfVariables());
+        for (String name : evidenceNames) {
+            Variable var = network.getVariable(name);
+            if (var != null) {
+                evidence.set(var.id);
+            }
+        }
+        return isBayesBall(network.getVariable(startVar).id, network.getVariable(endVar).id, evidence);
     }
 
-    public boolean isBayesBall(Variable startVar, Variable endVar, ArrayList<String> evidenceNames) {
-        ArrayList<Variable> visited=new ArrayList<>();
-
-        // handle parents
-        for(Variable v:startVar.parents) {
-            for (Variable v2 : endVar.parents) {
-                if (v == v2 && !evidenceNames.contains(v.name)) {
-                    return false;
-                }
-            }
+    // Returns true if the two variables are independent given the evidence. d-separation is symmetric,
+    // so a single traversal from startId answers the question.
+    public boolean isBayesBall(int startId, int endId, BitSet evidence) {
+        if (startId == endId) {
+            return false;
         }
+        return !reachable(startId, evidence).get(endId);
+    }
+
+    // Returns the ids of the unobserved variables that are d-connected to the source given the evidence
+    // (the source included, unless it is observed).
+    public BitSet reachable(int sourceId, BitSet evidence) {
+        int numOfVars = network.getNumberOfVariables();
+        BitSet visited = new BitSet(numOfVars);
+        traverse(sourceId, evidence, visited, new BitSet(numOfVars), new BitSet(numOfVars));
+        visited.andNot(evidence);
+        return visited;
+    }
 
-        // handle children
-        for(Variable v:startVar.children) {
-            for (Variable v2 : endVar.children) {
-                if (v == v2 && evidenceNames.contains(v.name)) {
-                    return false;
+    // Returns the ids of the variables whose CPT is needed to compute P(query | evidence), in one pass:
+    // the nodes outside the ancestral closure of the query and the evidence are barren and are never visited,
+    // and of the rest only the nodes the ball leaves upwards ('top' marks, Shachter's requisite nodes) are kept.
+    public BitSet requisiteVariables(int queryId, BitSet evidence) {
+        int numOfVars = network.getNumberOfVariables();
+        BitSet ancestors = new BitSet(numOfVars);
+        int[] stack = new int[16];
+        int size = 0;
+        stack[size++] = queryId;
+        for (int id = evidence.nextSetBit(0); id >= 0; id = evidence.nextSetBit(id + 1)) {
+            stack = push(stack, size++, id);
+        }
+        while (size > 0) {
+            int id = stack[--size];
+            if (!ancestors.get(id)) {
+                ancestors.set(id);
+                for (Variable parent : network.getVariable(id).parents) {
+                    stack = push(stack, size++, parent.id);
                 }
             }
         }
 
-        return areIndependent(startVar, endVar, evidenceNames, false, visited);
+        BitSet top = new BitSet(numOfVars);
+        traverse(queryId, evidence, ancestors, new BitSet(numOfVars), top, new BitSet(numOfVars));
+        return top;
     }
 
-    private boolean areIndependent(Variable startNode, Variable endNode, ArrayList<String> evidenceNames, boolean cameFromChild, ArrayList<Variable> visited) {
-        visited.add(startNode);
+    private void traverse(int sourceId, BitSet evidence, BitSet visited, BitSet top, BitSet bottom) {
+        traverse(sourceId, evidence, null, visited, top, bottom);
+    }
 
-        if (startNode == endNode) {
-            return false;
-        }
-        // if the variable is a part of the evidence, and we came from a child it means we got stuck.
-        // so the variables are independent
-        if (evidenceNames.contains(startNode.name) && cameFromChild) {
-            return true;
-        }
+    // Iterative Bayes-Ball from the source, which is visited as if the ball came from one of its children.
+    // 'top' marks the nodes that passed the ball to their parents, 'bottom' the ones that passed it to their children.
+    // Each mark is set once, so every edge is followed at most once in each direction: O(V+E).
+    // When 'scope' isn't null the ball never leaves the nodes it contains.
+    private void traverse(int sourceId, BitSet evidence, BitSet scope, BitSet visited, BitSet top, BitSet bottom) {
+        // pending visits, encoded as 2 * id + 1 when the ball comes from a child and 2 * id when it comes from a parent
+        int[] stack = new int[16];
+        int size = 0;
+        stack[size++] = 2 * sourceId + 1;
 
-        // if we are a part of the evidence we search its parents.
-        if (evidenceNames.contains(startNode.name)) {
-            for (Variable parent : startNode.parents) {
-                if (!areIndependent(parent, endNode, evidenceNames, true, visited)) {
-                    return false;
-                }
-            }
-        }
+        while (size > 0) {
+            int visit = stack[--size];
+            Variable node = network.getVariable(visit >> 1);
+            boolean fromChild = (visit & 1) == 1;
+            boolean observed = evidence.get(node.id);
+            visited.set(node.id);
 
-        // if we are not a part of the evidence, and we came from a child we can go either to a parent or a child
-        else if (cameFromChild) {
-            for (Variable child : startNode.children) {
-                if (!visited.contains(child) && !areIndependent(child, endNode, evidenceNames, false, visited)) {
-                    return false;
+            // an unobserved node passes a ball from a child to its parents, an observed node bounces a ball from a parent back to them
+            if (fromChild != observed && !top.get(node.id)) {
+                top.set(node.id);
+                for (Variable parent : node.parents) {
+                    stack = push(stack, size++, 2 * parent.id + 1);
                 }
             }
-
-            for (Variable parent : startNode.parents) {
-                if (!areIndependent(parent, endNode, evidenceNames, true, visited)) {
-                    return false;
+            // an unobserved node passes the ball to its children, wherever it came from
+            if (!observed && !bottom.get(node.id)) {
+                bottom.set(node.id);
+                for (Variable child : node.children) {
+                    if (scope == null || scope.get(child.id)) {
+                        stack = push(stack, size++, 2 * child.id);
+                    }
                 }
             }
         }
+    }
 
-        else {
-            for (Variable child : startNode.children) {
-                if (!visited.contains(child) && !areIndependent(child, endNode, evidenceNames, false, visited)) {
-                    return false;
-                }
-            }
+    private static int[] push(int[] stack, int index, int visit) {
+        if (index == stack.length) {
+            stack = Arrays.copyOf(stack, 2 * stack.length);
         }
-        return true;
+        stack[index] = visit;
+        return stack;
     }
 }
\ No newline at end of file
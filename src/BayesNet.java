@@ -7,6 +7,7 @@ public class BayesNet {
     public ArrayList<Variable> variables;
     public Map<String, Factor> cpts;
     private final Map<String, Variable> variableMap;
+    private Factor[] cptsById;
 
     public BayesNet() {
         variables = new ArrayList<>();
@@ -28,6 +29,23 @@ public class BayesNet {
     public void initialize() {
         Map<String, ArrayList<String>> graph = buildGraph();
         buildVariableMap(graph);
+        assignIds();
+    }
+
+    public void addVariable(Variable variable) {
+        variables.add(variable);
+        variableMap.put(variable.name, variable);
+    }
+
+    // Give every variable a dense id (its index in 'variables') and index its CPT by that id,
+    // so the inference engines can work with ints and arrays instead of names.
+    private void assignIds() {
+        cptsById = new Factor[variables.size()];
+        for (int id = 0; id < variables.size(); id++) {
+            Variable var = variables.get(id);
+            var.id = id;
+            cptsById[id] = cpts.get(var.name);
+        }
     }
 
     private void buildVariableMap(Map<String, ArrayList<String>> graph) {
@@ -52,6 +70,18 @@ public class BayesNet {
         return variableMap.get(name);
     }
 
+    public Variable getVariable(int id) {
+        return variables.get(id);
+    }
+
+    public int getNumberOfVariables() {
+        return variables.size();
+    }
+
+    public Factor getCpt(int id) {
+        return cptsById[id];
+    }
+
     public Collection<Variable> getVariables() {
         return variableMap.values();
     }
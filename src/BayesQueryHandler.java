@@ -1,109 +1,74 @@
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 public class BayesQueryHandler {
     private final BayesNet network;
     private final List<String> bayesianBallQueries;
     private final List<String> variableEliminationQueries;
-    private final FileWriter fileWriter;
+    private final String inputFile;
+    private final Writer fileWriter;
+    private boolean junctionTreeBatching = false;
+    private int threads = 1;
+    private boolean virtualThreads = false;
+    private InferenceListener listener = InferenceListener.NONE;
+    // how variable elimination plans the order of the queries that don't give one, or of every query when overriding
+    private EliminationOrder.Heuristic orderHeuristic = EliminationOrder.Heuristic.MIN_FILL;
+    private boolean overrideOrder = false;
+    private ApproximateInference approximateInference; // answers the P(...) queries instead of variable elimination when set
+    private LoopyBeliefPropagation beliefPropagation; // the same, when set
+    private ArithmeticCircuit circuit; // answers the P(...) queries exactly instead of variable elimination when set
+    private InferenceSession session; // the same, updating the evidence of the previous query
+
+    // the most queries in flight at once in streaming mode, so that memory doesn't grow with the input file.
+    private static final int STREAMING_WINDOW = 1024;
 
     public BayesQueryHandler(String inputFile) throws IOException, RuntimeException {
+        this(inputFile, false);
+    }
+
+    // In streaming mode the queries aren't read here but one by one by handleQueriesStreaming().
+    public BayesQueryHandler(String inputFile, boolean streaming) throws IOException, RuntimeException {
+        this.inputFile = inputFile;
         this.bayesianBallQueries = new ArrayList<>();
         this.variableEliminationQueries = new ArrayList<>();
         String xmlFilePath = getXmlFilePath(inputFile);
-        this.network = parseNetworkFromXML(xmlFilePath);
+        this.network = loadNetwork(xmlFilePath);
         this.network.initialize();
-        parseInputFile(inputFile);
-        fileWriter = new FileWriter("output.txt");
+        if (!streaming) {
+            parseInputFile(inputFile);
+        }
+        fileWriter = new BufferedWriter(new FileWriter("output.txt"));
     }
 
     private String getXmlFilePath(String inputFile) throws IOException {
-        BufferedReader file = new BufferedReader(new FileReader(inputFile));
-        return file.readLine(); // return the first line
+        try (BufferedReader file = new BufferedReader(new FileReader(inputFile))) {
+            return file.readLine(); // return the first line
+        }
     }
 
     public BayesNet getNetwork() {
         return network;
     }
 
-    private BayesNet parseNetworkFromXML(String xmlFilePath) throws RuntimeException {
-        BayesNet network = new BayesNet();
+    // The network file is either XMLBIF or a network compiled by BinaryNetwork, told apart by its magic number.
+    private BayesNet loadNetwork(String networkFilePath) throws RuntimeException {
         try {
-            File xmlFile = new File(xmlFilePath);
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(xmlFile);
-            doc.getDocumentElement().normalize();
-
-            // Parse variables
-            NodeList variableList = doc.getElementsByTagName("VARIABLE");
-            for (int i = 0; i < variableList.getLength(); i++) {
-                Element variableElement = (Element) variableList.item(i);
-                String name = variableElement.getElementsByTagName("NAME").item(0).getTextContent();
-                NodeList outcomeList = variableElement.getElementsByTagName("OUTCOME");
-                ArrayList<String> outcomes = new ArrayList<>();
-                for (int j = 0; j < outcomeList.getLength(); j++) {
-                    outcomes.add(outcomeList.item(j).getTextContent());
-                }
-                Variable variable = new Variable(name, outcomes);
-                network.variables.add(variable);
-            }
-
-            // Parse definitions (CPTs)
-            NodeList definitionList = doc.getElementsByTagName("DEFINITION");
-            for (int i = 0; i < definitionList.getLength(); i++) {
-                Element definitionElement = (Element) definitionList.item(i);
-                String forVar = definitionElement.getElementsByTagName("FOR").item(0).getTextContent();
-                NodeList givenList = definitionElement.getElementsByTagName("GIVEN");
-                List<String> givenVarNames = new ArrayList<>();
-                List<Variable> givenVars = new ArrayList<>();
-                for (int j = 0; j < givenList.getLength(); j++) {
-                    String varName = givenList.item(j).getTextContent();
-                    givenVarNames.add(varName);
-                    Optional<Variable> varNameObj = network.variables.stream().filter(v -> v.name.equals(varName)).findFirst();
-                    if (varNameObj.isEmpty()) {
-                        throw new Exception("Variable not found: " + forVar);
-                    }
-                    givenVars.add(varNameObj.get());
-                }
-                String tableStr = definitionElement.getElementsByTagName("TABLE").item(0).getTextContent();
-                List<Double> tableValues = new ArrayList<>();
-                for (String value : tableStr.split("\\s+")) {
-                    tableValues.add(Double.parseDouble(value));
-                }
-                Factor factor = new Factor();
-                factor.given = givenVarNames;
-                factor.table = new HashMap<>();
-
-                Optional<Variable> forVarObj = network.variables.stream().filter(v -> v.name.equals(forVar)).findFirst();;
-                if (forVarObj.isEmpty()) {
-                    throw new Exception("Variable not found: " + forVar);
-                }
-                if (givenVars.isEmpty()) {
-                    factor.variables = new ArrayList<>();
-                } else {
-                    factor.variables = new ArrayList<>(givenVars);
-                }
-                factor.variables.addLast(forVarObj.get());
-
-                factor.populateTable(tableValues);
-
-                network.cpts.put(forVar, factor);
+            if (BinaryNetwork.isBinary(networkFilePath)) {
+                return BinaryNetwork.load(networkFilePath);
             }
-
+            return XmlNetworkLoader.load(networkFilePath);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-        return network;
     }
 
     // Method to parse input.txt
@@ -111,9 +76,9 @@ public class BayesQueryHandler {
         try (BufferedReader br = new BufferedReader(new FileReader(inputFilePath))) {
             String line;
             while ((line = br.readLine()) != null) {
-                if (line.contains("|") && line.contains("P(")) {
+                if (isVariableEliminationQuery(line)) {
                     this.variableEliminationQueries.add(line);
-                } else if (line.contains("|") && !line.contains("P(")) {
+                } else if (isBayesianBallQuery(line)) {
                     this.bayesianBallQueries.add(line);
                 }
             }
@@ -122,53 +87,271 @@ public class BayesQueryHandler {
         }
     }
 
+    private static boolean isVariableEliminationQuery(String line) {
+        return line.contains("|") && line.contains("P(");
+    }
+
+    private static boolean isBayesianBallQuery(String line) {
+        return line.contains("|") && !line.contains("P(");
+    }
+
     // Method to handle Bayesian Ball queries
     public void handleBayesianBallQueries() throws IOException {
         BayesBall bayesBall = new BayesBall(network);
+        String[] results = new String[bayesianBallQueries.size()];
 
         System.out.println("Handling Bayesian Ball Queries:");
-        for (String query : bayesianBallQueries) {
-            // Parse the query
-            String[] parts = query.split("\\|");
-            String[] ab = parts[0].split("-");
-            String nodeA = ab[0];
-            String nodeB = ab[1];
-
-            ArrayList<String> evidenceNames = new ArrayList<>();
-            if (parts.length > 1) {
-                String[] keyValuePairs = parts[1].split(",");
-                for (String pair : keyValuePairs) {
-                    String[] ev = pair.split("=");
-                    if (ev.length == 2) { // Ensure it's a valid key-value pair
-                        evidenceNames.add(ev[0]);
-                    } else {
-                        // Handle invalid input if necessary
-                        System.err.println("Invalid key-value pair: " + pair);
-                    }
-                }
-            }
+        answerAll(bayesianBallQueries, results, query -> answerBayesBall(bayesBall, query));
+        for (String result : results) {
+            fileWriter.write(result + "\n");
+        }
+    }
 
-            boolean independent = bayesBall.isBayesBall(nodeA, nodeB, evidenceNames) && bayesBall.isBayesBall(nodeB, nodeA, evidenceNames);
-            System.out.println(nodeA + " and " + nodeB + " are " + (independent ? "independent" : "dependent") + " given " + evidenceNames);
-            if (independent) {
-                fileWriter.write("yes\n");
-            } else {
-                fileWriter.write("no\n");
+    private String answerBayesBall(BayesBall bayesBall, String query) {
+        // Parse the query
+        String[] parts = query.split("\\|");
+        String[] ab = parts[0].split("-");
+        String nodeA = ab[0];
+        String nodeB = ab[1];
+
+        ArrayList<String> evidenceNames = new ArrayList<>();
+        if (parts.length > 1) {
+            String[] keyValuePairs = parts[1].split(",");
+            for (String pair : keyValuePairs) {
+                String[] ev = pair.split("=");
+                if (ev.length == 2) { // Ensure it's a valid key-value pair
+                    evidenceNames.add(ev[0]);
+                } else {
+                    // Handle invalid input if necessary
+                    System.err.println("Invalid key-value pair: " + pair);
+                }
             }
         }
+
+        boolean independent = bayesBall.isBayesBall(nodeA, nodeB, evidenceNames);
+        System.out.println(nodeA + " and " + nodeB + " are " + (independent ? "independent" : "dependent") + " given " + evidenceNames);
+        return independent ? "yes" : "no";
     }
 
     public void handleVariableEliminationQueries() throws IOException {
-        VariableElimination variableElimination = new VariableElimination(network);
+        VariableElimination variableElimination = newVariableElimination();
+        String[] results = new String[variableEliminationQueries.size()];
+        if (junctionTreeBatching) {
+            answerBatchesWithJunctionTree(results);
+        }
 
         System.out.println("Handling Variable Elimination Queries:");
-        for (String query : variableEliminationQueries) {
-            String result = variableElimination.answer(query);
-            System.out.println(query + " => " + result);
+        if (approximateInference != null || beliefPropagation != null) {
+            answerAll(variableEliminationQueries, results, query -> answerApproximately(query));
+        } else if (circuit != null) {
+            answerAll(variableEliminationQueries, results, query -> answerWithCircuit(query));
+        } else if (session != null) {
+            answerAll(variableEliminationQueries, results, query -> answerInSession(query));
+        } else {
+            answerAll(variableEliminationQueries, results, query -> answerVariableElimination(variableElimination, query));
+        }
+        for (String result : results) {
             fileWriter.write(result + "\n");
         }
     }
 
+    private VariableElimination newVariableElimination() {
+        VariableElimination variableElimination = new VariableElimination(network);
+        variableElimination.setListener(listener);
+        variableElimination.setOrderHeuristic(orderHeuristic);
+        variableElimination.setOverrideOrder(overrideOrder);
+        return variableElimination;
+    }
+
+    private String answerVariableElimination(VariableElimination variableElimination, String query) {
+        String result = variableElimination.answer(query);
+        System.out.println(query + " => " + result);
+        return result;
+    }
+
+    private String answerWithCircuit(String query) {
+        String result = circuit.answer(query);
+        System.out.println(query + " => " + result);
+        return result;
+    }
+
+    private String answerInSession(String query) {
+        String result = session.answer(query);
+        System.out.println(query + " => " + result);
+        return result;
+    }
+
+    private String answerApproximately(String query) {
+        String result = approximateInference != null ? approximateInference.answer(query) : beliefPropagation.answer(query);
+        System.out.println(query + " ~> " + result);
+        return result;
+    }
+
+    // Read the queries of the input file one at a time and write each answer as soon as it and the ones before it
+    // are known, so the answers come out in the order of the input file (Bayes-Ball and P(...) queries mixed).
+    // With more than one thread at most STREAMING_WINDOW queries are in flight. Junction tree batching needs all
+    // the queries up front, so it isn't used here.
+    public void handleQueriesStreaming() throws IOException {
+        BayesBall bayesBall = new BayesBall(network);
+        VariableElimination variableElimination = newVariableElimination();
+        Function<String, String> answer = query -> !isVariableEliminationQuery(query)
+                ? answerBayesBall(bayesBall, query)
+                : approximateInference != null || beliefPropagation != null
+                ? answerApproximately(query)
+                : circuit != null
+                ? answerWithCircuit(query)
+                : session != null
+                ? answerInSession(query)
+                : answerVariableElimination(variableElimination, query);
+
+        System.out.println("Handling Queries:");
+        try (BufferedReader br = new BufferedReader(new FileReader(inputFile))) {
+            String line;
+            if (isSequential()) {
+                while ((line = br.readLine()) != null) {
+                    if (isVariableEliminationQuery(line) || isBayesianBallQuery(line)) {
+                        fileWriter.write(answer.apply(line) + "\n");
+                    }
+                }
+                return;
+            }
+
+            try (ExecutorService executor = newExecutor()) {
+                ArrayDeque<Future<String>> window = new ArrayDeque<>();
+                while ((line = br.readLine()) != null) {
+                    if (isVariableEliminationQuery(line) || isBayesianBallQuery(line)) {
+                        String query = line;
+                        window.addLast(executor.submit(() -> answer.apply(query)));
+                        if (window.size() >= STREAMING_WINDOW) {
+                            fileWriter.write(window.removeFirst().get() + "\n");
+                        }
+                    }
+                }
+                while (!window.isEmpty()) {
+                    fileWriter.write(window.removeFirst().get() + "\n");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    // A session answers each query from the evidence of the one before it, so its queries run in input order
+    // whatever the parallelism.
+    private boolean isSequential() {
+        return (threads <= 1 && !virtualThreads) || session != null;
+    }
+
+    private ExecutorService newExecutor() {
+        return virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(threads);
+    }
+
+    // Fill every missing results[i] with the answer to queries.get(i). With more than one thread the queries run
+    // concurrently on the shared, read-only network; the results keep the input order either way.
+    private void answerAll(List<String> queries, String[] results, Function<String, String> answer) {
+        if (isSequential()) {
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] == null) {
+                    results[i] = answer.apply(queries.get(i));
+                }
+            }
+            return;
+        }
+
+        try (ExecutorService executor = newExecutor()) {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < results.length; i++) {
+                String query = queries.get(i);
+                futures.add(results[i] == null ? executor.submit(() -> answer.apply(query)) : null);
+            }
+            for (int i = 0; i < results.length; i++) {
+                if (futures.get(i) != null) {
+                    results[i] = futures.get(i).get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Queries that share their evidence with at least one other query are answered by a junction tree,
+    // which is compiled once and calibrated once per evidence set.
+    private void answerBatchesWithJunctionTree(String[] results) {
+        Map<String, List<Integer>> batches = new LinkedHashMap<>();
+        Query[] queries = new Query[results.length];
+        for (int i = 0; i < results.length; i++) {
+            queries[i] = Query.parse(variableEliminationQueries.get(i), network);
+            batches.computeIfAbsent(queries[i].evidenceKey(), _ -> new ArrayList<>()).add(i);
+        }
+
+        JunctionTree junctionTree = null;
+        for (List<Integer> batch : batches.values()) {
+            if (batch.size() < 2) {
+                continue;
+            }
+            if (junctionTree == null) {
+                junctionTree = new JunctionTree(network);
+            }
+            for (int i : batch) {
+                results[i] = junctionTree.answer(queries[i]);
+            }
+        }
+    }
+
+    // Run the queries on 'threads' platform threads, or on virtual threads if 'virtualThreads' is set.
+    // The default of one platform thread answers them one by one on the calling thread.
+    public void setParallelism(int threads, boolean virtualThreads) {
+        this.threads = threads;
+        this.virtualThreads = virtualThreads;
+    }
+
+    // When set, batches of P(...) queries with the same evidence go to a junction tree instead of variable elimination.
+    // The first query of a batch reports the operations of the calibration, the later ones only those of their marginal.
+    public void setJunctionTreeBatching(boolean junctionTreeBatching) {
+        this.junctionTreeBatching = junctionTreeBatching;
+    }
+
+    // The heuristic that plans the elimination order of the P(...) queries without one. With overrideOrder it also
+    // replaces the orders the queries give.
+    public void setEliminationOrder(EliminationOrder.Heuristic orderHeuristic, boolean overrideOrder) {
+        this.orderHeuristic = orderHeuristic;
+        this.overrideOrder = overrideOrder;
+    }
+
+    // Receives the steps of every variable elimination, e.g. a VerboseInferenceListener to print them.
+    public void setListener(InferenceListener listener) {
+        this.listener = listener;
+    }
+
+    // When set, the P(...) queries are answered by sampling, as "probability,error bound,samples".
+    public void setApproximateInference(ApproximateInference approximateInference) {
+        this.approximateInference = approximateInference;
+    }
+
+    // When set, the P(...) queries are answered by loopy belief propagation, as "probability,iterations".
+    public void setBeliefPropagation(LoopyBeliefPropagation beliefPropagation) {
+        this.beliefPropagation = beliefPropagation;
+    }
+
+    // When set, the P(...) queries are answered by evaluating the compiled circuit, as "probability".
+    public void setArithmeticCircuit(ArithmeticCircuit circuit) {
+        this.circuit = circuit;
+    }
+
+    // When set, the P(...) queries are answered by one junction tree session, one after the other, changing only the
+    // evidence that differs from the previous query. The answers are "prob,adds,multiplies" like variable elimination,
+    // counting the operations of the update. The queries then run on the calling thread, in input order, even if
+    // a parallelism is set.
+    public void setIncrementalSession(boolean incremental) {
+        this.session = incremental ? new InferenceSession(network) : null;
+    }
+
     public void writeOutput() throws IOException {
         fileWriter.close();
     }
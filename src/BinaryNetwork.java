@@ -0,0 +1,135 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiled binary form of a network, so that short runs don't have to parse the XML every time.
+// Layout (big-endian):
+//   int MAGIC, int VERSION, int numOfVars
+//   per variable: name, int numOfOutcomes, the outcomes            (a string is an int byte length + UTF-8 bytes)
+//   per variable: int numOfParents, the parent indices, int tableSize, the CPT values as doubles
+// The CPT of a variable is over its parents (in the order of the XML GIVEN elements) and then the variable itself.
+// Loading maps the file and bulk-copies every table straight into the double[] of its Factor.
+public class BinaryNetwork {
+    static final int MAGIC = 0x424E4554; // "BNET"
+    static final int VERSION = 1;
+
+    // Compile an XMLBIF file: java BinaryNetwork alarm_net.xml alarm_net.bnet
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage: java BinaryNetwork <network.xml> <network.bnet>");
+            return;
+        }
+        write(XmlNetworkLoader.load(args[0]), args[1]);
+    }
+
+    // Returns true if the file starts with the magic number of the binary format.
+    public static boolean isBinary(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    public static void write(BayesNet network, String path) throws IOException {
+        List<Variable> variables = network.variables;
+        Map<String, Integer> indices = new HashMap<>();
+        for (int i = 0; i < variables.size(); i++) {
+            indices.put(variables.get(i).name, i);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(variables.size());
+            for (Variable var : variables) {
+                writeString(out, var.name);
+                out.writeInt(var.numberOfOutcomes);
+                for (String outcome : var.outcomes) {
+                    writeString(out, outcome);
+                }
+            }
+            for (Variable var : variables) {
+                Factor cpt = network.cpts.get(var.name);
+                if (cpt == null) {
+                    throw new IllegalArgumentException("No CPT for variable " + var.name);
+                }
+                out.writeInt(cpt.given.size());
+                for (String parent : cpt.given) {
+                    out.writeInt(indices.get(parent));
+                }
+                out.writeInt(cpt.table.length);
+                for (double value : cpt.table) {
+                    out.writeDouble(value);
+                }
+            }
+        }
+    }
+
+    public static BayesNet load(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException(path + " is not a compiled network");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported compiled network version " + version);
+            }
+
+            BayesNet network = new BayesNet();
+            int numOfVars = buffer.getInt();
+            for (int i = 0; i < numOfVars; i++) {
+                String name = readString(buffer);
+                int numOfOutcomes = buffer.getInt();
+                ArrayList<String> outcomes = new ArrayList<>(numOfOutcomes);
+                for (int k = 0; k < numOfOutcomes; k++) {
+                    outcomes.add(readString(buffer));
+                }
+                network.addVariable(new Variable(name, outcomes));
+            }
+
+            for (Variable var : network.variables) {
+                int numOfParents = buffer.getInt();
+                List<Variable> factorVars = new ArrayList<>(numOfParents + 1);
+                List<String> given = new ArrayList<>(numOfParents);
+                for (int p = 0; p < numOfParents; p++) {
+                    Variable parent = network.variables.get(buffer.getInt());
+                    factorVars.add(parent);
+                    given.add(parent.name);
+                }
+                factorVars.add(var);
+
+                Factor cpt = new Factor(factorVars);
+                cpt.given = given;
+                int tableSize = buffer.getInt();
+                if (tableSize != cpt.table.length) {
+                    throw new IllegalArgumentException("Expected " + cpt.table.length + " values for " + var.name + " but got " + tableSize);
+                }
+                buffer.asDoubleBuffer().get(cpt.table);
+                buffer.position(buffer.position() + tableSize * Double.BYTES);
+                network.cpts.put(var.name, cpt);
+            }
+            return network;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.*;
+
+// Greedy elimination order planner: builds the interaction graph of a set of factors
+// and repeatedly eliminates the variable that is cheapest according to the chosen heuristic.
+public class EliminationOrder {
+    public enum Heuristic {
+        MIN_FILL,   // fewest edges added between the neighbours of the variable
+        MIN_WEIGHT, // smallest table over the variable and its neighbours
+        MIN_DEGREE  // fewest neighbours
+    }
+
+    private final BayesNet network;
+    private final Heuristic heuristic;
+
+    public EliminationOrder(BayesNet network, Heuristic heuristic) {
+        this.network = network;
+        this.heuristic = heuristic;
+    }
+
+    public Heuristic getHeuristic() {
+        return heuristic;
+    }
+
+    // Returns the ids of every variable of the factors except those in 'keep', in the order to eliminate them.
+    public int[] plan(Collection<Factor> factors, BitSet keep) {
+        List<List<Variable>> scopes = new ArrayList<>();
+        for (Factor factor : factors) {
+            scopes.add(factor.variables);
+        }
+        return planScopes(scopes, keep);
+    }
+
+    // Same as plan(), for factors given only by their variables.
+    public int[] planScopes(Collection<? extends List<Variable>> scopes, BitSet keep) {
+        BitSet[] neighbours = interactionGraph(scopes);
+        BitSet remaining = new BitSet(neighbours.length);
+        for (int id = 0; id < neighbours.length; id++) {
+            if (neighbours[id] != null) {
+                remaining.set(id);
+            }
+        }
+        remaining.andNot(keep);
+
+        int[] order = new int[remaining.cardinality()];
+        BitSet scratch = new BitSet(neighbours.length);
+        for (int step = 0; step < order.length; step++) {
+            int best = -1;
+            long bestScore = Long.MAX_VALUE;
+            long bestTieBreak = Long.MAX_VALUE;
+            for (int id = remaining.nextSetBit(0); id >= 0; id = remaining.nextSetBit(id + 1)) {
+                long score = score(heuristic, id, neighbours, scratch);
+                long tieBreak = score(heuristic == Heuristic.MIN_FILL ? Heuristic.MIN_WEIGHT : Heuristic.MIN_FILL, id, neighbours, scratch);
+                // ties on both criteria go to the smallest id, as the loop visits the ids in increasing order
+                if (score < bestScore || (score == bestScore && tieBreak < bestTieBreak)) {
+                    best = id;
+                    bestScore = score;
+                    bestTieBreak = tieBreak;
+                }
+            }
+            order[step] = best;
+            eliminate(best, neighbours);
+            remaining.clear(best);
+        }
+        return order;
+    }
+
+    // Returns the clique {v} + neighbours(v) formed when each variable v of 'order' is eliminated in turn.
+    public List<BitSet> inducedCliques(Collection<? extends List<Variable>> scopes, int[] order) {
+        BitSet[] neighbours = interactionGraph(scopes);
+        List<BitSet> cliques = new ArrayList<>();
+        for (int id : order) {
+            BitSet clique = (BitSet) neighbours[id].clone();
+            clique.set(id);
+            cliques.add(clique);
+            eliminate(id, neighbours);
+        }
+        return cliques;
+    }
+
+    // Two variables are neighbours if they appear in the same factor. Variables of no factor get a null entry.
+    private BitSet[] interactionGraph(Collection<? extends List<Variable>> scopes) {
+        int numOfVars = network.getNumberOfVariables();
+        BitSet[] neighbours = new BitSet[numOfVars];
+        for (List<Variable> scope : scopes) {
+            for (Variable var : scope) {
+                if (neighbours[var.id] == null) {
+                    neighbours[var.id] = new BitSet(numOfVars);
+                }
+                for (Variable other : scope) {
+                    if (other != var) {
+                        neighbours[var.id].set(other.id);
+                    }
+                }
+            }
+        }
+        return neighbours;
+    }
+
+    // 'scratch' is overwritten, it saves a copy of the neighbours per neighbour for min-fill.
+    private long score(Heuristic heuristic, int id, BitSet[] neighbours, BitSet scratch) {
+        BitSet adjacent = neighbours[id];
+        switch (heuristic) {
+            case MIN_DEGREE:
+                return adjacent.cardinality();
+            case MIN_WEIGHT:
+                long weight = network.getVariable(id).numberOfOutcomes;
+                for (int n = adjacent.nextSetBit(0); n >= 0; n = adjacent.nextSetBit(n + 1)) {
+                    int cardinality = network.getVariable(n).numberOfOutcomes;
+                    weight = weight > Long.MAX_VALUE / cardinality ? Long.MAX_VALUE : weight * cardinality;
+                }
+                return weight;
+            default:
+                long fill = 0;
+                for (int n = adjacent.nextSetBit(0); n >= 0; n = adjacent.nextSetBit(n + 1)) {
+                    scratch.clear();
+                    scratch.or(adjacent);
+                    scratch.andNot(neighbours[n]);
+                    scratch.clear(0, n + 1); // count every missing pair once
+                    fill += scratch.cardinality();
+                }
+                return fill;
+        }
+    }
+
+    // Connect all the neighbours of 'id' to each other and remove 'id' from the graph.
+    private static void eliminate(int id, BitSet[] neighbours) {
+        BitSet adjacent = neighbours[id];
+        for (int n = adjacent.nextSetBit(0); n >= 0; n = adjacent.nextSetBit(n + 1)) {
+            neighbours[n].or(adjacent);
+            neighbours[n].clear(n);
+            neighbours[n].clear(id);
+        }
+        adjacent.clear();
+    }
+}
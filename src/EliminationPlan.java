@@ -0,0 +1,203 @@
+import java.util.*;
+
+// The steps of variable elimination for a query shape: the query variable, the observed variables and the elimination
+// order, whatever the observed outcomes. It is worked out once from the variables of the factors only: the Bayes-Ball
+// pruning, the reduction by evidence, the planned order, the factors of every step in the order they are joined.
+// VariableElimination runs a plan on factors and PreparedQuery on bare tables, so both do the same steps in the same
+// order. The factors live in slots: slot i < cptIds.length holds the CPT of variable cptIds[i] reduced by the
+// evidence it contains, the next ones hold the outputs of the steps, and every slot is read by at most one step.
+final class EliminationPlan {
+    static final byte JOIN_AND_ELIMINATE = 0;
+    static final byte JOIN = 1;
+    static final byte ELIMINATE = 2; // sum a variable out of the single input
+
+    static final class Step {
+        final byte kind;
+        final int[] inputs; // in the order they are joined
+        final int output;
+        final Variable eliminated; // null for a JOIN
+
+        Step(byte kind, int[] inputs, int output, Variable eliminated) {
+            this.kind = kind;
+            this.inputs = inputs;
+            this.output = output;
+            this.eliminated = eliminated;
+        }
+    }
+
+    final Variable queryVar;
+    final int[] evidenceIds;
+    final int[] cptIds;
+    final List<List<Variable>> scopes = new ArrayList<>(); // per slot, the variables of its factor
+    final Step[] steps;
+    final int resultSlot; // a factor over the query variable only
+    // the position of the query variable in evidenceIds, -1 if it isn't observed. An observed query variable has
+    // posterior 1 at its observed outcome and 0 at the others, so then there are no CPTs and no steps.
+    final int observedQueryPosition;
+
+    EliminationPlan(BayesNet network, int queryVarId, int[] evidenceIds, int[] eliminationOrder,
+                    EliminationOrder planner, boolean overrideOrder) {
+        this.queryVar = network.getVariable(queryVarId);
+        this.evidenceIds = evidenceIds;
+        int position = -1;
+        for (int i = 0; i < evidenceIds.length; i++) {
+            if (evidenceIds[i] == queryVarId) {
+                position = i;
+            }
+        }
+        this.observedQueryPosition = position;
+        if (position >= 0) {
+            this.cptIds = new int[0];
+            this.steps = new Step[0];
+            this.resultSlot = -1;
+            return;
+        }
+        BitSet evidence = new BitSet(network.getNumberOfVariables());
+        for (int evidenceId : evidenceIds) {
+            evidence.set(evidenceId);
+        }
+
+        // Take only the CPTs that can influence the query: the requisite variables found by one Bayes-Ball sweep.
+        // The ones without evidence keep their order by id, the ones reduced by evidence follow in the order the
+        // evidence reaches them.
+        BitSet relevantVars = new BayesBall(network).requisiteVariables(queryVarId, evidence);
+        List<Integer> ids = new ArrayList<>();
+        for (int id = relevantVars.nextSetBit(0); id >= 0; id = relevantVars.nextSetBit(id + 1)) {
+            ids.add(id);
+        }
+        List<Integer> reducedIds = new ArrayList<>();
+        for (int evidenceId : evidenceIds) {
+            for (int id : ids) {
+                if (network.getCpt(id).contains(evidenceId) && !reducedIds.contains(id)) {
+                    reducedIds.add(id);
+                }
+            }
+        }
+        ids.removeAll(reducedIds);
+        ids.addAll(reducedIds);
+        cptIds = toArray(ids);
+
+        // the active slots, in the order VariableElimination keeps its factors
+        List<Integer> slots = new ArrayList<>();
+        for (int id : cptIds) {
+            List<Variable> scope = new ArrayList<>(network.getCpt(id).variables);
+            scope.removeIf(var -> evidence.get(var.id));
+            slots.add(scopes.size());
+            scopes.add(scope);
+        }
+
+        // let the planner choose the order if none was given
+        int[] order = eliminationOrder;
+        if (order.length == 0 || overrideOrder) {
+            BitSet keep = new BitSet(network.getNumberOfVariables());
+            keep.set(queryVarId);
+            order = planner.planScopes(scopes, keep);
+        }
+
+        // Join the factors of every variable to eliminate and sum it out, the output goes back to the active slots.
+        // The factors are joined from the smallest to the largest table, then by the codes of their variable names.
+        List<Step> plannedSteps = new ArrayList<>();
+        Comparator<Integer> joinOrder = Comparator.<Integer>comparingInt(slot -> Factor.tableSize(scopes.get(slot)))
+                .thenComparingInt(slot -> Factor.asciiCodes(scopes.get(slot)));
+        List<Integer> inputs = new ArrayList<>();
+        for (int varId : order) {
+            inputs.clear();
+            for (int i = 0; i < slots.size(); i++) {
+                if (contains(scopes.get(slots.get(i)), varId)) {
+                    inputs.add(slots.remove(i--));
+                }
+            }
+            // a variable outside the requisite factors is skipped
+            if (inputs.isEmpty()) {
+                continue;
+            }
+            inputs.sort(joinOrder);
+
+            List<Variable> outputScope = new ArrayList<>();
+            Factor.joinVariables(inputs, scopes::get, outputScope);
+            Variable eliminated = network.getVariable(varId);
+            outputScope.remove(eliminated);
+            plannedSteps.add(new Step(JOIN_AND_ELIMINATE, toArray(inputs), scopes.size(), eliminated));
+            slots.add(scopes.size());
+            scopes.add(outputScope);
+        }
+
+        // join the remaining factors from left to right
+        int slot = slots.getFirst();
+        for (int i = 1; i < slots.size(); i++) {
+            List<Variable> joinedScope = new ArrayList<>();
+            Factor.joinVariables(List.of(slot, slots.get(i)), scopes::get, joinedScope);
+            plannedSteps.add(new Step(JOIN, new int[]{slot, slots.get(i)}, scopes.size(), null));
+            slot = scopes.size();
+            scopes.add(joinedScope);
+        }
+
+        // and sum out whatever is left besides the query variable, in the order of the joined factor
+        for (Variable var : new ArrayList<>(scopes.get(slot))) {
+            if (var.id != queryVarId) {
+                List<Variable> outputScope = new ArrayList<>(scopes.get(slot));
+                outputScope.remove(var);
+                plannedSteps.add(new Step(ELIMINATE, new int[]{slot}, scopes.size(), var));
+                slot = scopes.size();
+                scopes.add(outputScope);
+            }
+        }
+
+        this.steps = plannedSteps.toArray(new Step[0]);
+        this.resultSlot = slot;
+    }
+
+    int getNumberOfSlots() {
+        return scopes.size();
+    }
+
+    // The additions VariableElimination reports when every factor is dense, normalization included.
+    int numOfAdds(boolean compatibleAccounting) {
+        if (observedQueryPosition >= 0) {
+            return 0;
+        }
+        int adds = 0;
+        for (Step step : steps) {
+            int size = Factor.tableSize(scopes.get(step.output));
+            if (step.kind == JOIN_AND_ELIMINATE) {
+                adds += Factor.joinAndEliminateAdds(size, step.eliminated.numberOfOutcomes, compatibleAccounting);
+            } else if (step.kind == ELIMINATE) {
+                adds += size;
+            }
+        }
+        return adds + Factor.tableSize(scopes.get(resultSlot)) - 1;
+    }
+
+    // The multiplications VariableElimination reports when every factor is dense.
+    int numOfMultiplies(boolean compatibleAccounting) {
+        int multiplies = 0;
+        for (Step step : steps) {
+            int size = Factor.tableSize(scopes.get(step.output));
+            if (step.kind == JOIN_AND_ELIMINATE) {
+                int joinedMultiplies = Factor.joinVariables(Arrays.stream(step.inputs).boxed().toList(), scopes::get, new ArrayList<>());
+                multiplies += Factor.joinAndEliminateMultiplies(joinedMultiplies, size, step.eliminated.numberOfOutcomes,
+                        step.inputs.length, compatibleAccounting);
+            } else if (step.kind == JOIN) {
+                multiplies += size;
+            }
+        }
+        return multiplies;
+    }
+
+    private static boolean contains(List<Variable> scope, int varId) {
+        for (Variable var : scope) {
+            if (var.id == varId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+}
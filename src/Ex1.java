@@ -1,17 +1,153 @@
+import java.io.File;
 import java.io.IOException;
 
 public class Ex1 {
     public static void main(String[] args) {
         try {
-            // args[1] should be the input text file if specified.
-            String inputFile = args.length > 0 ? args[0] : "input.txt";
-            BayesQueryHandler bayesQueryHandler = new BayesQueryHandler(inputFile);
+            // the input text file may be given as an argument, next to the options.
+            String inputFile = "input.txt";
+            boolean junctionTree = false;
+            int threads = 1;
+            boolean virtualThreads = false;
+            boolean streaming = false;
+            boolean verbose = false;
+            ApproximateInference.Method sampling = null;
+            long samples = 0;
+            double errorBound = 0.0;
+            boolean loopyBeliefPropagation = false;
+            double damping = 0.0;
+            double tolerance = 1e-6;
+            int maxIterations = 100;
+            boolean compileCircuit = false;
+            String circuitFile = null;
+            boolean incremental = false;
+            EliminationOrder.Heuristic orderHeuristic = EliminationOrder.Heuristic.MIN_FILL;
+            boolean overrideOrder = false;
+            for (String arg : args) {
+                if (arg.equals("--junction-tree")) {
+                    junctionTree = true;
+                } else if (arg.startsWith("--threads=")) {
+                    threads = Integer.parseInt(arg.substring("--threads=".length()));
+                } else if (arg.equals("--virtual-threads")) {
+                    virtualThreads = true;
+                } else if (arg.equals("--stream")) {
+                    streaming = true;
+                } else if (arg.equals("--verbose")) {
+                    verbose = true;
+                } else if (arg.equals("--sampling=likelihood-weighting")) {
+                    sampling = ApproximateInference.Method.LIKELIHOOD_WEIGHTING;
+                } else if (arg.equals("--sampling=gibbs")) {
+                    sampling = ApproximateInference.Method.GIBBS;
+                } else if (arg.startsWith("--samples=")) {
+                    samples = Long.parseLong(arg.substring("--samples=".length()));
+                } else if (arg.startsWith("--error-bound=")) {
+                    errorBound = Double.parseDouble(arg.substring("--error-bound=".length()));
+                } else if (arg.equals("--loopy-bp")) {
+                    loopyBeliefPropagation = true;
+                } else if (arg.startsWith("--damping=")) {
+                    damping = Double.parseDouble(arg.substring("--damping=".length()));
+                } else if (arg.startsWith("--tolerance=")) {
+                    tolerance = Double.parseDouble(arg.substring("--tolerance=".length()));
+                } else if (arg.startsWith("--max-iterations=")) {
+                    maxIterations = Integer.parseInt(arg.substring("--max-iterations=".length()));
+                } else if (arg.equals("--incremental")) {
+                    incremental = true;
+                } else if (arg.equals("--circuit")) {
+                    compileCircuit = true;
+                } else if (arg.startsWith("--circuit=")) {
+                    compileCircuit = true;
+                    circuitFile = arg.substring("--circuit=".length());
+                } else if (arg.startsWith("--order=")) {
+                    orderHeuristic = parseOrderHeuristic(arg.substring("--order=".length()));
+                } else if (arg.equals("--override-order")) {
+                    overrideOrder = true;
+                } else if (arg.startsWith("--")) {
+                    exitWithUsage("Unknown option: " + arg);
+                } else {
+                    inputFile = arg;
+                }
+            }
+            // each of these answers the P(...) queries with another engine, so only one may be chosen
+            int engines = (junctionTree ? 1 : 0) + (incremental ? 1 : 0) + (compileCircuit ? 1 : 0)
+                    + (loopyBeliefPropagation ? 1 : 0) + (sampling != null ? 1 : 0);
+            if (engines > 1) {
+                exitWithUsage("Choose at most one of --junction-tree, --incremental, --circuit, --loopy-bp and --sampling");
+            }
+            BayesQueryHandler bayesQueryHandler = new BayesQueryHandler(inputFile, streaming);
+            bayesQueryHandler.setJunctionTreeBatching(junctionTree);
+            bayesQueryHandler.setParallelism(threads, virtualThreads);
+            bayesQueryHandler.setIncrementalSession(incremental);
+            bayesQueryHandler.setEliminationOrder(orderHeuristic, overrideOrder);
+            if (verbose) {
+                bayesQueryHandler.setListener(new VerboseInferenceListener());
+            }
+            if (sampling != null) {
+                ApproximateInference approximateInference = new ApproximateInference(bayesQueryHandler.getNetwork());
+                approximateInference.setMethod(sampling);
+                if (samples > 0) {
+                    approximateInference.setSampleBudget(samples);
+                }
+                approximateInference.setTargetErrorBound(errorBound);
+                bayesQueryHandler.setApproximateInference(approximateInference);
+            }
+            if (loopyBeliefPropagation) {
+                LoopyBeliefPropagation beliefPropagation = new LoopyBeliefPropagation(bayesQueryHandler.getNetwork());
+                beliefPropagation.setDamping(damping);
+                beliefPropagation.setTolerance(tolerance);
+                beliefPropagation.setMaxIterations(maxIterations);
+                bayesQueryHandler.setBeliefPropagation(beliefPropagation);
+            }
+            if (compileCircuit) {
+                // a circuit file is compiled on the first run and loaded on the next ones
+                ArithmeticCircuit circuit;
+                if (circuitFile != null && new File(circuitFile).exists()) {
+                    circuit = ArithmeticCircuit.load(circuitFile, bayesQueryHandler.getNetwork());
+                } else {
+                    circuit = ArithmeticCircuit.compile(bayesQueryHandler.getNetwork());
+                    if (circuitFile != null) {
+                        circuit.write(circuitFile);
+                    }
+                }
+                bayesQueryHandler.setArithmeticCircuit(circuit);
+            }
 
-            bayesQueryHandler.handleBayesianBallQueries();
-            bayesQueryHandler.handleVariableEliminationQueries();
+            if (streaming) {
+                bayesQueryHandler.handleQueriesStreaming();
+            } else {
+                bayesQueryHandler.handleBayesianBallQueries();
+                bayesQueryHandler.handleVariableEliminationQueries();
+            }
             bayesQueryHandler.writeOutput();
         } catch (IOException ex) {
             System.out.println("An error occurred while processing the queries. " + ex.getMessage());
         }
     }
+
+    private static final String USAGE = """
+            Usage: java Ex1 [options] [input file]
+              --junction-tree | --incremental | --circuit[=FILE] | --loopy-bp | --sampling=likelihood-weighting|gibbs
+              --order=min-fill|min-weight|min-degree  --override-order
+              --threads=N  --virtual-threads  --stream  --verbose
+              --samples=N  --error-bound=E  --damping=D  --tolerance=T  --max-iterations=N""";
+
+    // Print what is wrong with the command line and the usage, and exit.
+    private static void exitWithUsage(String problem) {
+        System.err.println(problem);
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+
+    private static EliminationOrder.Heuristic parseOrderHeuristic(String name) {
+        switch (name) {
+            case "min-fill":
+                return EliminationOrder.Heuristic.MIN_FILL;
+            case "min-weight":
+                return EliminationOrder.Heuristic.MIN_WEIGHT;
+            case "min-degree":
+                return EliminationOrder.Heuristic.MIN_DEGREE;
+            default:
+                exitWithUsage("Unknown elimination order: " + name);
+                return null;
+        }
+    }
 }
@@ -1,16 +1,44 @@
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
 
 public class Factor {
     public List<String> given = new ArrayList<>();
     public List<Variable> variables; // List of variable in the factor
-    public Map<LinkedHashMap<String, String>, Double> table; // Table mapping variable assignments to probabilities
+    public double[] table; // Dense table indexed by mixed-radix strides over 'variables', the last variable changes fastest
+    int[] strides; // strides[i] is the distance in 'table' between two consecutive outcomes of variables.get(i)
+    // Sparse storage, used instead of 'table' (which is then null) when most rows are 0: the indices in the dense table
+    // of the non-zero rows, in increasing order, and their values. See chooseStorage().
+    int[] sparseRows;
+    double[] sparseValues;
+    // A view (see view() and removeEvidence()) reads the table of another factor in place: its row 0 is table[offset]
+    // and tableStrides[i] is the distance in 'table' between two consecutive outcomes of variables.get(i), while
+    // 'strides' keeps numbering its rows as if it had a table of its own. A view never writes to its table, it gets
+    // a copy first (see ensureDense()). For any other factor offset is 0 and tableStrides is 'strides'.
+    private int offset;
+    private int[] tableStrides;
     private int numOfAdds;
     private int numOfMultiplies;
 
+    // Tables with more rows than this are filled in parallel on the common ForkJoinPool.
+    private static volatile int parallelThreshold = 1 << 15;
+    // The kernels run on the Vector API (see VectorKernels) when the JVM has the jdk.incubator.vector module
+    // (java --add-modules jdk.incubator.vector) and vectors of at least two doubles, otherwise they run scalar.
+    private static final boolean VECTOR_AVAILABLE = vectorAvailable();
+    private static volatile boolean vectorized = VECTOR_AVAILABLE;
+
     public Factor(Factor factor) {
         this.given = new ArrayList<>(factor.given);
         this.variables = new ArrayList<>(factor.variables);
-        this.table = new HashMap<>(factor.table);
+        if (factor.isSparse()) {
+            this.sparseRows = factor.sparseRows.clone();
+            this.sparseValues = factor.sparseValues.clone();
+        } else {
+            this.table = factor.isView() ? factor.gather() : factor.table.clone();
+        }
+        this.strides = factor.strides;
+        this.tableStrides = factor.strides;
         numOfMultiplies = factor.numOfMultiplies;
         numOfAdds = factor.numOfAdds;
     }
@@ -18,22 +46,220 @@ public class Factor {
     public Factor(List<Variable> variables) {
         this.given = new ArrayList<>();
         this.variables = new ArrayList<>(variables);
-        this.table = new HashMap<>();
+        this.strides = computeStrides(this.variables);
+        this.tableStrides = this.strides;
+        this.table = new double[tableSize(this.variables)];
         numOfMultiplies = 0;
         numOfAdds = 0;
     }
 
     public Factor() {
-        numOfMultiplies = 0;
-        numOfAdds = 0;
+        this(new ArrayList<>());
+    }
+
+    // A dense factor with the given table, which must have the size of the variables' table.
+    private Factor(ArrayList<Variable> variables, double[] table) {
+        this.variables = variables;
+        this.strides = computeStrides(variables);
+        this.tableStrides = this.strides;
+        this.table = table;
+    }
+
+    // A sparse factor, the rows must be in increasing order.
+    private Factor(List<Variable> variables, int[] sparseRows, double[] sparseValues) {
+        this.variables = new ArrayList<>(variables);
+        this.strides = computeStrides(this.variables);
+        this.tableStrides = this.strides;
+        this.sparseRows = sparseRows;
+        this.sparseValues = sparseValues;
+    }
+
+    // A view over 'table', see the 'offset' field.
+    private Factor(List<Variable> variables, double[] table, int offset, int[] tableStrides) {
+        this.variables = variables;
+        this.strides = computeStrides(variables);
+        this.table = table;
+        this.offset = offset;
+        this.tableStrides = tableStrides;
+    }
+
+    // A read-only view of this factor that shares its table instead of copying it. Reducing the view by evidence
+    // gives views too, so reading a CPT for a query allocates no table. A sparse factor is copied.
+    public Factor view() {
+        if (isSparse()) {
+            return new Factor(this);
+        }
+        Factor view = new Factor(variables, table, offset, tableStrides.clone());
+        view.given = given;
+        return view;
+    }
+
+    boolean isView() {
+        return tableStrides != strides;
+    }
+
+    // The last variable gets stride 1, every other variable the product of the cardinalities to its right.
+    static int[] computeStrides(List<Variable> variables) {
+        int[] strides = new int[variables.size()];
+        int stride = 1;
+        for (int i = variables.size() - 1; i >= 0; i--) {
+            strides[i] = stride;
+            stride *= variables.get(i).numberOfOutcomes;
+        }
+        return strides;
+    }
+
+    static int tableSize(List<Variable> variables) {
+        int size = 1;
+        for (Variable var : variables) {
+            size *= var.numberOfOutcomes;
+        }
+        return size;
+    }
+
+    int[] cardinalities() {
+        return cardinalities(variables);
+    }
+
+    static int[] cardinalities(List<Variable> variables) {
+        int[] result = new int[variables.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = variables.get(i).numberOfOutcomes;
+        }
+        return result;
+    }
+
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public static void setParallelThreshold(int threshold) {
+        parallelThreshold = threshold;
+    }
+
+    // VectorKernels needs the module, so it is only loaded once the module is known to be there. The kernels only
+    // call it when 'vectorized' is set.
+    private static boolean vectorAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() && VectorKernels.LANES >= 2;
+    }
+
+    public static boolean isVectorized() {
+        return vectorized;
+    }
+
+    // Switch between the vector and the scalar kernels, e.g. to compare them. They give the same tables, except for
+    // the sum of normalize() on large tables.
+    public static void setVectorized(boolean enabled) {
+        if (enabled && !VECTOR_AVAILABLE) {
+            throw new IllegalStateException("The Vector API isn't available, run with --add-modules jdk.incubator.vector");
+        }
+        vectorized = enabled;
+    }
+
+    // Fills the rows [from, to) of a result table.
+    interface RowRange {
+        void fill(int from, int to);
+    }
+
+    // Calls rows.fill over [0, size): in one call below the parallel threshold, otherwise split across the common
+    // ForkJoinPool. Every row of a result depends only on the operands, so the split doesn't change any value.
+    static void forEachRowRange(int size, RowRange rows) {
+        if (size <= parallelThreshold) {
+            rows.fill(0, size);
+            return;
+        }
+        int chunk = Math.max(parallelThreshold / 4, size / (4 * ForkJoinPool.getCommonPoolParallelism()));
+        ForkJoinPool.commonPool().invoke(new RowRangeTask(rows, 0, size, Math.max(chunk, 1)));
+    }
+
+    @SuppressWarnings("serial") // ForkJoin tasks are never serialized
+    private static final class RowRangeTask extends RecursiveAction {
+        private final RowRange rows;
+        private final int from;
+        private final int to;
+        private final int chunk;
+
+        RowRangeTask(RowRange rows, int from, int to, int chunk) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                rows.fill(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RowRangeTask(rows, from, middle, chunk), new RowRangeTask(rows, middle, to, chunk));
+        }
+    }
+
+    // Returns the outcome of every variable in the given row of a table with the given cardinalities.
+    static int[] outcomesAt(int row, int[] cardinalities) {
+        return outcomesAt(row, cardinalities, new int[cardinalities.length]);
+    }
+
+    // The same, written into 'outcomes', which may be longer than 'cardinalities'.
+    static int[] outcomesAt(int row, int[] cardinalities, int[] outcomes) {
+        for (int k = cardinalities.length - 1; k >= 0; k--) {
+            outcomes[k] = row % cardinalities[k];
+            row /= cardinalities[k];
+        }
+        return outcomes;
+    }
+
+    // Returns the outcome index of variables.get(varIndex) in the given row of the table.
+    int outcomeAt(int row, int varIndex) {
+        return (row / strides[varIndex]) % variables.get(varIndex).numberOfOutcomes;
+    }
+
+    // Returns the row of the table matching the assignment, or -1 if the assignment doesn't cover exactly this factor.
+    private int indexOf(Map<String, String> assignment) {
+        if (assignment.size() != variables.size()) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = 0; i < variables.size(); i++) {
+            Variable var = variables.get(i);
+            String outcome = assignment.get(var.name);
+            int outcomeIndex = outcome == null ? -1 : var.getOutcomeIndex(outcome);
+            if (outcomeIndex < 0) {
+                return -1;
+            }
+            index += outcomeIndex * strides[i];
+        }
+        return index;
+    }
+
+    // Returns the position of the variable with the given id in 'variables', or -1 if it isn't in the factor.
+    int indexOfVariable(int varId) {
+        for (int i = 0; i < variables.size(); i++) {
+            if (variables.get(i).id == varId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(int varId) {
+        return indexOfVariable(varId) >= 0;
     }
 
     void setProbability(LinkedHashMap<String, String> assignment, double probability) {
-        table.put(new LinkedHashMap<>(assignment), probability);
+        ensureDense();
+        int index = indexOf(assignment);
+        if (index < 0) {
+            throw new IllegalArgumentException("Assignment " + assignment + " doesn't match the factor variables.");
+        }
+        table[index] = probability;
     }
 
     double getProbability(LinkedHashMap<String, String> assignment) {
-        return table.getOrDefault(assignment, 0.0);
+        int index = indexOf(assignment);
+        return index < 0 ? 0.0 : denseTable()[index];
     }
 
     @Override
@@ -41,19 +267,20 @@ public class Factor {
         if (this == obj) return true;
         if (obj == null || getClass() != obj.getClass()) return false;
         Factor factor = (Factor) obj;
-        return Objects.equals(table, factor.table) &&
+        return Arrays.equals(denseTable(), factor.denseTable()) &&
                 Objects.equals(given, factor.given) &&
                 Objects.equals(variables, factor.variables);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(table, given, variables);
+        return Objects.hash(Arrays.hashCode(denseTable()), given, variables);
     }
 
     @Override
     public String toString() {
-        if (table.isEmpty()) {
+        double[] table = denseTable();
+        if (table.length == 0) {
             return "Factor is empty.";
         }
         // print in the first line the variables separated by 5 whitespaces and the word Probability
@@ -64,12 +291,11 @@ public class Factor {
             vars.add(var.name);
         }
         sb.append(String.join("    ", vars)).append("    Probability\n");
-        for (Map.Entry<LinkedHashMap<String, String>, Double> entry : table.entrySet()) {
-            LinkedHashMap<String, String> assignment = entry.getKey();
-            for (Map.Entry<String, String> mapKeyValue : assignment.entrySet()) {
-                sb.append(mapKeyValue.getValue()).append("    ");
+        for (int row = 0; row < table.length; row++) {
+            for (int i = 0; i < variables.size(); i++) {
+                sb.append(variables.get(i).outcomes.get(outcomeAt(row, i))).append("    ");
             }
-            String roundedProb = String.format("%.5f", entry.getValue());
+            String roundedProb = String.format("%.5f", table[row]);
             sb.append(roundedProb).append("\n");
         }
         return sb.toString();
@@ -79,7 +305,7 @@ public class Factor {
     public double getTotalProbability(Factor factor) {
         double total = 0.0;
 
-        for (double probability : factor.table.values()) {
+        for (double probability : factor.denseTable()) {
             total += probability;
             this.numOfAdds++;
         }
@@ -88,13 +314,11 @@ public class Factor {
     }
 
     // Join operation between two factors
-    public Factor JoinFactor(Factor f2) {
-        Factor f1 = this;
-
-        // Identify common and all variables
-        List<Variable> commonVars = new ArrayList<>(f1.variables);
-        commonVars.retainAll(f2.variables);
+    public Factor JoinFactor(Factor other) {
+        Factor f1 = this.dense();
+        Factor f2 = other.dense();
 
+        // Identify all variables: the variables of f1 come first, followed by those only in f2
         List<Variable> allVars = new ArrayList<>(f1.variables);
         for (Variable var : f2.variables) {
             if (!allVars.contains(var)) {
@@ -102,191 +326,734 @@ public class Factor {
             }
         }
 
-        // handle a special case when one of the factor has only one value, e.g. B=T
-        if (f1.table.size() == 1) {
-            allVars.remove(f1.variables.getFirst());
-        } else if (f2.table.size() == 1) {
-            allVars.remove(f2.variables.getFirst());
-        }
         // Create the resulting factor
         Factor result = new Factor(allVars);
-        result.table = new HashMap<>();
-        int numOfMultiplies = 0;
-
-        // Perform the join
-        for (LinkedHashMap<String, String> assignment1 : f1.table.keySet()) {
-            for (LinkedHashMap<String, String> assignment2 : f2.table.keySet()) {
-                if (consistent(assignment1, assignment2, commonVars)) {
-                    // If one of the factor has only one value, we take the assignment from the other factor
-                    LinkedHashMap<String, String> combinedAssignment;
-                    if (f1.table.size() == 1) {
-                        combinedAssignment = new LinkedHashMap<>(assignment2);
-                    } else if (f2.table.size() == 1) {
-                        combinedAssignment = new LinkedHashMap<>(assignment1);
-                    } else {
-                        // Combine the assignments
-                        combinedAssignment = new LinkedHashMap<>(assignment1);
-                        combinedAssignment.putAll(assignment2);
-                    }
 
-                    double prob1 = f1.getProbability(assignment1);
-                    double prob2 = f2.getProbability(assignment2);
-                    double combinedProbability = prob1 * prob2;
-                    numOfMultiplies++;
-                    result.setProbability(combinedAssignment, combinedProbability);
-                }
-            }
+        // Walk the rows of the result once, moving each operand by its own stride of every result variable.
+        // Every row of the result is the product of exactly one consistent pair of rows.
+        int[] strides1 = f1.tableStridesOver(allVars);
+        int[] strides2 = f2.tableStridesOver(allVars);
+        int[] cardinalities = result.cardinalities();
+        forEachRowRange(result.table.length, (from, to) -> joinRows(f1.table, f1.offset, strides1,
+                f2.table, f2.offset, strides2, cardinalities, result.table, from, to));
+        result.setNumOfMultiplies(result.table.length);
+        return result;
+    }
+
+    // Returns, for each of the given variables, its stride in this factor (0 if the factor doesn't contain it).
+    int[] stridesOver(List<Variable> vars) {
+        return stridesOver(vars, strides);
+    }
+
+    // The same, in 'table' rather than in the rows of the factor. They differ only for views.
+    private int[] tableStridesOver(List<Variable> vars) {
+        return stridesOver(vars, tableStrides);
+    }
+
+    private int[] stridesOver(List<Variable> vars, int[] ownStrides) {
+        return stridesOver(this.variables, ownStrides, vars);
+    }
+
+    // For each variable of 'onto', its stride in a table over 'variables' with the given strides (0 if absent).
+    static int[] stridesOver(List<Variable> variables, int[] strides, List<Variable> onto) {
+        int[] result = new int[onto.size()];
+        for (int i = 0; i < onto.size(); i++) {
+            int varIndex = variables.indexOf(onto.get(i));
+            result[i] = varIndex < 0 ? 0 : strides[varIndex];
         }
-        result.setNumOfMultiplies(numOfMultiplies);
         return result;
     }
 
-    // Check if assignments are consistent over common variables
-    private boolean consistent(LinkedHashMap<String, String> a1, LinkedHashMap<String, String> a2, List<Variable> commonVars) {
-        for (Variable variable : commonVars) {
-            String var = variable.name;
-            if (a1.containsKey(var) && a2.containsKey(var) && !a1.get(var).equals(a2.get(var))) {
-                return false;
+    // Fill the rows [from, to) of 'result' with the products of the matching rows of table1 and table2.
+    // The operands start at offset1 and offset2 of their tables, strides1 and strides2 are their strides over the
+    // variables of the result, whose cardinalities are given.
+    static void joinRows(double[] table1, int offset1, int[] strides1, double[] table2, int offset2, int[] strides2,
+                         int[] cardinalities, double[] result, int from, int to) {
+        joinRows(table1, offset1, strides1, table2, offset2, strides2, cardinalities, result, from, to,
+                new int[cardinalities.length]);
+    }
+
+    // The same, keeping the odometer in 'digits' (at least as long as 'cardinalities') instead of allocating one.
+    static void joinRows(double[] table1, int offset1, int[] strides1, double[] table2, int offset2, int[] strides2,
+                         int[] cardinalities, double[] result, int from, int to, int[] digits) {
+        if (vectorized) {
+            int run = Math.min(VectorKernels.runLength(strides1, cardinalities), VectorKernels.runLength(strides2, cardinalities));
+            if (run >= VectorKernels.LANES) {
+                VectorKernels.joinRows(table1, offset1, strides1, table2, offset2, strides2, cardinalities, result,
+                        from, to, digits, run);
+                return;
+            }
+        }
+        scalarJoinRows(table1, offset1, strides1, table2, offset2, strides2, cardinalities, result, from, to, digits);
+    }
+
+    static void scalarJoinRows(double[] table1, int offset1, int[] strides1, double[] table2, int offset2, int[] strides2,
+                               int[] cardinalities, double[] result, int from, int to, int[] digits) {
+        int numOfVars = cardinalities.length;
+        outcomesAt(from, cardinalities, digits);
+        int row1 = offset1;
+        int row2 = offset2;
+        for (int k = 0; k < numOfVars; k++) {
+            row1 += digits[k] * strides1[k];
+            row2 += digits[k] * strides2[k];
+        }
+
+        for (int row = from; row < to; row++) {
+            result[row] = table1[row1] * table2[row2];
+
+            // advance the assignment like an odometer, the last variable changes fastest
+            for (int k = numOfVars - 1; k >= 0; k--) {
+                int cardinality = cardinalities[k];
+                if (++digits[k] < cardinality) {
+                    row1 += strides1[k];
+                    row2 += strides2[k];
+                    break;
+                }
+                digits[k] = 0;
+                row1 -= strides1[k] * (cardinality - 1);
+                row2 -= strides2[k] * (cardinality - 1);
             }
         }
-        return true;
     }
 
     // Eliminate a variable by summing out
-    public Factor Eliminate(String variable) {
+    public Factor Eliminate(int varId) {
         // Check if cpt or cpt.variables is null
         if (this.variables == null) {
             throw new IllegalArgumentException("The CPT or its variables cannot be null.");
         }
 
-        System.out.println("Eliminate variable " + variable + " from the factor:\n");
-        System.out.println(this);
+        int varIndex = indexOfVariable(varId);
+        if (varIndex < 0) {
+            return new Factor(this);
+        }
+        Factor dense = this.dense();
+
         // Determine the variables of the new factor
         ArrayList<Variable> newVariables = new ArrayList<>(this.variables);
-        // remove an element from 'newVariables' by name=variable.
-        for (Variable var : this.variables) {
-            if (var.name.equals(variable)) {
+        newVariables.remove(varIndex);
+
+        // Create the resulting factor
+        Factor result = new Factor(newVariables);
+
+        // Perform the summing out: every row of the result adds up the rows that differ only in 'variable',
+        // in the order of its outcomes
+        int cardinality = this.variables.get(varIndex).numberOfOutcomes;
+        if (dense.isView()) {
+            // sum the shared table in place, as a join and eliminate of this factor alone
+            double[][] operands = {dense.table};
+            int[] offsets = {dense.offset};
+            int[][] operandStrides = {dense.tableStridesOver(newVariables)};
+            int[] eliminatedStrides = {dense.tableStrides[varIndex]};
+            int[] cardinalities = result.cardinalities();
+            forEachRowRange(result.table.length, (from, to) -> joinAndEliminateRows(operands, offsets, operandStrides,
+                    eliminatedStrides, cardinality, cardinalities, result.table, from, to));
+        } else {
+            int stride = this.strides[varIndex];
+            forEachRowRange(result.table.length, (from, to) -> eliminateRows(dense.table, stride, cardinality, result.table, from, to));
+        }
+
+        return result;
+    }
+
+    // Fill the rows [from, to) of 'result' with the sums of the rows of 'table' that differ only in the variable
+    // with the given stride and cardinality.
+    static void eliminateRows(double[] table, int stride, int cardinality, double[] result, int from, int to) {
+        if (vectorized && stride >= VectorKernels.LANES) {
+            VectorKernels.eliminateRows(table, stride, cardinality, result, from, to);
+            return;
+        }
+        scalarEliminateRows(table, stride, cardinality, result, from, to);
+    }
+
+    static void scalarEliminateRows(double[] table, int stride, int cardinality, double[] result, int from, int to) {
+        int block = stride * cardinality;
+        for (int reducedRow = from; reducedRow < to; reducedRow++) {
+            int firstRow = (reducedRow / stride) * block + reducedRow % stride;
+            double sum = 0.0;
+            for (int outcome = 0; outcome < cardinality; outcome++) {
+                sum += table[firstRow + outcome * stride];
+            }
+            result[reducedRow] = sum;
+        }
+    }
+
+    // Multiply the factors and sum out the variable 'varId' in a single pass, without materializing the joined table.
+    // The factors are multiplied left to right, so the result is identical to joining them one by one and then
+    // calling Eliminate(varId). With compatibleAccounting the multiply and add counts are the ones that join and
+    // eliminate would have reported, otherwise they are the operations the fused pass really performs.
+    public static Factor joinAndEliminate(List<Factor> factors, int varId, boolean compatibleAccounting) {
+        return joinAndEliminate(factors, varId, compatibleAccounting, null);
+    }
+
+    // The same, with the table of a dense result taken from the arena when it isn't null.
+    static Factor joinAndEliminate(List<Factor> factors, int varId, boolean compatibleAccounting, FactorArena arena) {
+        // Identify all variables in join order, and the sizes of the tables the pairwise joins would have produced
+        List<Variable> allVars = new ArrayList<>();
+        int joinedMultiplies = joinVariables(factors, factor -> factor.variables, allVars);
+
+        Variable eliminated = null;
+        ArrayList<Variable> newVariables = new ArrayList<>(allVars);
+        for (Variable var : allVars) {
+            if (var.id == varId) {
+                eliminated = var;
                 newVariables.remove(var);
                 break;
             }
         }
+        if (eliminated == null) {
+            throw new IllegalArgumentException("Variable " + varId + " is not in any of the factors.");
+        }
+        for (Factor factor : factors) {
+            if (factor.isSparse()) {
+                return sparseJoinAndEliminate(factors, eliminated, newVariables, joinedMultiplies, compatibleAccounting);
+            }
+        }
+        Factor result = arena == null ? new Factor(newVariables)
+                : new Factor(newVariables, arena.take(tableSize(newVariables)));
 
-        // Create the resulting factor
-        Factor result = new Factor(newVariables);
+        Factor[] operands = factors.toArray(new Factor[0]);
+        double[][] operandTables = new double[operands.length][];
+        int[] offsets = new int[operands.length];
+        int[][] operandStrides = new int[operands.length][];
+        int[] eliminatedStrides = new int[operands.length];
+        for (int j = 0; j < operands.length; j++) {
+            operandTables[j] = operands[j].table;
+            offsets[j] = operands[j].offset;
+            operandStrides[j] = operands[j].tableStridesOver(newVariables);
+            int varIndex = operands[j].variables.indexOf(eliminated);
+            eliminatedStrides[j] = varIndex < 0 ? 0 : operands[j].tableStrides[varIndex];
+        }
+        int eliminatedCardinality = eliminated.numberOfOutcomes;
+        int[] cardinalities = result.cardinalities();
+        forEachRowRange(result.table.length, (from, to) -> joinAndEliminateRows(operandTables, offsets, operandStrides,
+                eliminatedStrides, eliminatedCardinality, cardinalities, result.table, from, to));
+
+        result.numOfMultiplies = joinAndEliminateMultiplies(joinedMultiplies, result.table.length,
+                eliminatedCardinality, operands.length, compatibleAccounting);
+        result.numOfAdds = joinAndEliminateAdds(result.table.length, eliminatedCardinality, compatibleAccounting);
+        return result;
+    }
+
+    // Add to 'allVars' the variables of the factors joined left to right, in the order JoinFactor() gives them. The
+    // factors may be given by their variables only, 'scope' tells them. Returns the multiplies the joins report: the
+    // size of every joined table.
+    static <T> int joinVariables(List<T> factors, Function<T, List<Variable>> scope, List<Variable> allVars) {
+        int joinedMultiplies = 0;
+        for (int i = 0; i < factors.size(); i++) {
+            for (Variable var : scope.apply(factors.get(i))) {
+                if (!allVars.contains(var)) {
+                    allVars.add(var);
+                }
+            }
+            if (i > 0) {
+                joinedMultiplies += tableSize(allVars);
+            }
+        }
+        return joinedMultiplies;
+    }
+
+    // The operations joinAndEliminate() reports for dense factors: with compatibleAccounting those of the joins and
+    // the elimination, otherwise those of the fused pass.
+    static int joinAndEliminateMultiplies(int joinedMultiplies, int resultSize, int eliminatedCardinality,
+                                          int numOfOperands, boolean compatibleAccounting) {
+        return compatibleAccounting ? joinedMultiplies : resultSize * eliminatedCardinality * (numOfOperands - 1);
+    }
+
+    static int joinAndEliminateAdds(int resultSize, int eliminatedCardinality, boolean compatibleAccounting) {
+        return compatibleAccounting ? resultSize : resultSize * (eliminatedCardinality - 1);
+    }
 
-        // Create a map to accumulate sums for each reduced assignment
-        Map<LinkedHashMap<String, String>, Double> sumMap = new HashMap<>();
+    // Fill the rows [from, to) of 'result': each row is the sum, over the outcomes of the eliminated variable,
+    // of the product of the matching rows of the operands. The operands start at their offsets, operandStrides are
+    // their strides over the variables of the result, whose cardinalities are given.
+    static void joinAndEliminateRows(double[][] operands, int[] offsets, int[][] operandStrides, int[] eliminatedStrides,
+                                     int eliminatedCardinality, int[] cardinalities, double[] result, int from, int to) {
+        joinAndEliminateRows(operands, offsets, operandStrides, eliminatedStrides, eliminatedCardinality, cardinalities,
+                result, from, to, new int[cardinalities.length], new int[operands.length]);
+    }
 
-        // Perform the summing out
-        for (LinkedHashMap<String, String> assignment : this.table.keySet()) {
-            LinkedHashMap<String, String> reducedAssignment = new LinkedHashMap<>(assignment);
-            reducedAssignment.remove(variable);
+    // The same, keeping the odometer in 'digits' and the rows of the operands in 'baseRows' (at least as long as
+    // 'cardinalities' and 'operands') instead of allocating them.
+    static void joinAndEliminateRows(double[][] operands, int[] offsets, int[][] operandStrides, int[] eliminatedStrides,
+                                     int eliminatedCardinality, int[] cardinalities, double[] result, int from, int to,
+                                     int[] digits, int[] baseRows) {
+        if (vectorized) {
+            int run = Integer.MAX_VALUE;
+            for (int j = 0; j < operands.length; j++) {
+                run = Math.min(run, VectorKernels.runLength(operandStrides[j], cardinalities));
+            }
+            if (run >= VectorKernels.LANES) {
+                VectorKernels.joinAndEliminateRows(operands, offsets, operandStrides, eliminatedStrides,
+                        eliminatedCardinality, cardinalities, result, from, to, digits, baseRows, run);
+                return;
+            }
+        }
+        scalarJoinAndEliminateRows(operands, offsets, operandStrides, eliminatedStrides, eliminatedCardinality,
+                cardinalities, result, from, to, digits, baseRows);
+    }
 
-            double currentProbability = sumMap.getOrDefault(reducedAssignment, 0.0);
-            sumMap.put(reducedAssignment, currentProbability + this.getProbability(assignment));
+    static void scalarJoinAndEliminateRows(double[][] operands, int[] offsets, int[][] operandStrides,
+                                           int[] eliminatedStrides, int eliminatedCardinality, int[] cardinalities,
+                                           double[] result, int from, int to, int[] digits, int[] baseRows) {
+        int numOfVars = cardinalities.length;
+        outcomesAt(from, cardinalities, digits);
+        System.arraycopy(offsets, 0, baseRows, 0, operands.length);
+        for (int k = 0; k < numOfVars; k++) {
+            for (int j = 0; j < operands.length; j++) {
+                baseRows[j] += digits[k] * operandStrides[j][k];
+            }
+        }
+
+        for (int row = from; row < to; row++) {
+            double sum = 0.0;
+            for (int outcome = 0; outcome < eliminatedCardinality; outcome++) {
+                double product = operands[0][baseRows[0] + outcome * eliminatedStrides[0]];
+                for (int j = 1; j < operands.length; j++) {
+                    product *= operands[j][baseRows[j] + outcome * eliminatedStrides[j]];
+                }
+                sum += product;
+            }
+            result[row] = sum;
+
+            // advance the assignment like an odometer, the last variable changes fastest
+            for (int k = numOfVars - 1; k >= 0; k--) {
+                if (++digits[k] < cardinalities[k]) {
+                    for (int j = 0; j < operands.length; j++) {
+                        baseRows[j] += operandStrides[j][k];
+                    }
+                    break;
+                }
+                digits[k] = 0;
+                for (int j = 0; j < operands.length; j++) {
+                    baseRows[j] -= operandStrides[j][k] * (cardinalities[k] - 1);
+                }
+            }
         }
+    }
 
-        // Set probabilities for the resulting factor
-        for (Map.Entry<LinkedHashMap<String, String>, Double> entry : sumMap.entrySet()) {
-            result.setProbability(entry.getKey(), entry.getValue());
+    // Sum out every variable that isn't in 'onto'. The result has the variables of 'onto', in that order.
+    public Factor marginalize(List<Variable> onto) {
+        if (!this.variables.containsAll(onto)) {
+            throw new IllegalArgumentException("Can't marginalize a factor onto variables it doesn't contain.");
         }
+        double[] table = denseTable();
+        Factor result = new Factor(onto);
+        int[] resultStrides = result.stridesOver(this.variables);
+        int[] cardinalities = this.cardinalities();
+        int[] digits = new int[cardinalities.length];
+        int resultRow = 0;
+        for (int row = 0; row < table.length; row++) {
+            result.table[resultRow] += table[row];
 
-        System.out.println("The elimination result is:\n");
-        System.out.println(result + "\n");
+            // advance the assignment like an odometer, the last variable changes fastest
+            for (int k = cardinalities.length - 1; k >= 0; k--) {
+                if (++digits[k] < cardinalities[k]) {
+                    resultRow += resultStrides[k];
+                    break;
+                }
+                digits[k] = 0;
+                resultRow -= resultStrides[k] * (cardinalities[k] - 1);
+            }
+        }
+        result.numOfAdds = table.length - result.table.length;
         return result;
     }
 
-    public Factor removeEvidence(String givenName, String givenValue) {
-        // Create the resulting factor
-        Factor resultFactor = new Factor(this.variables);
-        // remove the column "givenName" from the list of variables, if there are more than one variable.
-        if (this.variables.size() > 1) {
-            resultFactor.variables.removeIf(var -> var.name.equals(givenName));
-        }
-
-        // create a key of the map "table" to remove
-        LinkedHashMap<String, String> queryAssignment = new LinkedHashMap<>();
-        // String queryVar = givenValue.equals("T") ? "true" : "false";
-        queryAssignment.put(givenName, givenValue);
-
-        for (LinkedHashMap<String, String> assignment : this.table.keySet()) {
-            if (assignment.entrySet().containsAll(queryAssignment.entrySet())) {
-                LinkedHashMap<String, String> newKey = new LinkedHashMap<>();
-                for (String key : assignment.keySet()) {
-                    if (!key.equals(givenName) || this.variables.size() == 1) {
-                        newKey.put(key, assignment.get(key));
-                    }
+    public Factor removeEvidence(int varId, int outcomeIndex) {
+        int varIndex = indexOfVariable(varId);
+        if (varIndex < 0) {
+            return new Factor(this);
+        }
+
+        // Create the resulting factor without the column of the evidence variable
+        ArrayList<Variable> newVariables = new ArrayList<>(this.variables);
+        newVariables.remove(varIndex);
+        int stride = this.strides[varIndex];
+        int cardinality = this.variables.get(varIndex).numberOfOutcomes;
+        int block = stride * cardinality;
+
+        if (isSparse()) {
+            // keep the non-zero rows with the observed outcome, they stay in increasing order
+            int[] rows = new int[sparseRows.length];
+            double[] values = new double[sparseRows.length];
+            int count = 0;
+            for (int i = 0; i < sparseRows.length; i++) {
+                int row = sparseRows[i];
+                if ((row / stride) % cardinality == outcomeIndex) {
+                    rows[count] = (row / block) * stride + row % stride;
+                    values[count++] = sparseValues[i];
                 }
-                resultFactor.table.put(newKey, this.table.get(assignment));
             }
+            return new Factor(newVariables, Arrays.copyOf(rows, count), Arrays.copyOf(values, count));
         }
 
-        return resultFactor;
+        // a view of the rows where the evidence variable has the observed outcome, nothing is copied
+        int[] newTableStrides = new int[newVariables.size()];
+        for (int i = 0, k = 0; i < this.variables.size(); i++) {
+            if (i != varIndex) {
+                newTableStrides[k++] = this.tableStrides[i];
+            }
+        }
+        return new Factor(newVariables, table, offset + outcomeIndex * tableStrides[varIndex], newTableStrides);
     }
 
+    // The number of rows of the full table, however it is stored.
     public int getTableSize(){
-        return table.size();
+        return tableSize(variables);
     }
 
     public int normalize() { // return the number of add operations.
+        ensureDense();
+        if (vectorized && table.length >= VectorKernels.MIN_NORMALIZE) {
+            this.numOfAdds = table.length;
+            VectorKernels.normalize(table);
+            return this.numOfAdds-1;
+        }
         this.numOfAdds = 0;
         double total = getTotalProbability(this);
 
-        for (Map.Entry<LinkedHashMap<String, String>, Double> entry : table.entrySet()) {
-            entry.setValue(entry.getValue() / total);
+        for (int row = 0; row < table.length; row++) {
+            table[row] /= total;
         }
         return this.numOfAdds-1;
     }
 
-    void populateTable(List<Double> tableValues) {
-        generateCombinations(tableValues, new ArrayList<>(), 0);
+    // The values are ordered as in the XML TABLE element: row-major over 'variables', the last variable changes fastest.
+    void populateTable(double[] tableValues) {
+        ensureDense();
+        if (tableValues.length != table.length) {
+            throw new IllegalArgumentException("Expected " + table.length + " values but got " + tableValues.length);
+        }
+        System.arraycopy(tableValues, 0, table, 0, table.length);
+    }
+
+    // Returns the probability of a single-variable factor over 'varId' at the given outcome, 0.0 for any other factor.
+    public double getProbability(int varId, int outcomeIndex) {
+        if (variables.size() != 1 || variables.getFirst().id != varId) {
+            return 0.0;
+        }
+        return denseTable()[outcomeIndex];
+    }
+
+    boolean isSparse() {
+        return table == null;
+    }
+
+    // Store the factor sparse if less than 'sparseDensity' of its rows are non-zero, dense otherwise.
+    // The values don't change, only how they are stored. A density of 0 keeps every factor dense.
+    void chooseStorage(double sparseDensity) {
+        int nonZeros = 0;
+        if (isSparse()) {
+            nonZeros = sparseRows.length;
+        } else if (sparseDensity > 0.0) {
+            int[] cardinalities = cardinalities();
+            int[] digits = new int[cardinalities.length];
+            int row = offset;
+            for (int i = getTableSize(); i > 0; i--) {
+                if (table[row] != 0.0) {
+                    nonZeros++;
+                }
+
+                // advance the assignment like an odometer, the last variable changes fastest
+                for (int k = cardinalities.length - 1; k >= 0; k--) {
+                    if (++digits[k] < cardinalities[k]) {
+                        row += tableStrides[k];
+                        break;
+                    }
+                    digits[k] = 0;
+                    row -= tableStrides[k] * (cardinalities[k] - 1);
+                }
+            }
+        }
+        boolean sparse = nonZeros < sparseDensity * getTableSize();
+        if (sparse && !isSparse()) {
+            Factor copy = asSparse();
+            sparseRows = copy.sparseRows;
+            sparseValues = copy.sparseValues;
+            table = null;
+            offset = 0;
+            tableStrides = strides;
+        } else if (!sparse && isSparse()) {
+            ensureDense();
+        }
+    }
+
+    // Give the table back to the arena if the factor has one of its own (a view's table belongs to another factor).
+    // The factor can't be used afterwards.
+    void releaseTable(FactorArena arena) {
+        if (table != null && !isView()) {
+            arena.release(table);
+        }
+        table = null;
+        sparseRows = null;
+        sparseValues = null;
+    }
+
+    // Switch to a dense table of its own, if the factor is sparse or a view.
+    void ensureDense() {
+        if (isSparse()) {
+            table = denseTable();
+            sparseRows = null;
+            sparseValues = null;
+        } else if (isView()) {
+            table = gather();
+            offset = 0;
+            tableStrides = strides;
+        }
+    }
+
+    // The rows of a view, copied out of the shared table in order.
+    private double[] gather() {
+        int[] cardinalities = cardinalities();
+        double[] result = new double[getTableSize()];
+        int[] digits = new int[cardinalities.length];
+        int row = offset;
+        for (int reducedRow = 0; reducedRow < result.length; reducedRow++) {
+            result[reducedRow] = table[row];
+
+            // advance the assignment like an odometer, the last variable changes fastest
+            for (int k = cardinalities.length - 1; k >= 0; k--) {
+                if (++digits[k] < cardinalities[k]) {
+                    row += tableStrides[k];
+                    break;
+                }
+                digits[k] = 0;
+                row -= tableStrides[k] * (cardinalities[k] - 1);
+            }
+        }
+        return result;
+    }
+
+    // The dense table of the factor: 'table' itself, a copy of the rows of a view, or a new array with the sparse
+    // rows filled in.
+    private double[] denseTable() {
+        if (isView()) {
+            return gather();
+        }
+        if (!isSparse()) {
+            return table;
+        }
+        double[] dense = new double[getTableSize()];
+        for (int i = 0; i < sparseRows.length; i++) {
+            dense[sparseRows[i]] = sparseValues[i];
+        }
+        return dense;
+    }
+
+    // This factor if it is dense (possibly a view), otherwise a dense copy.
+    private Factor dense() {
+        if (!isSparse()) {
+            return this;
+        }
+        Factor copy = new Factor(this);
+        copy.ensureDense();
+        return copy;
     }
 
-    void generateCombinations(List<Double> tableValues, List<String> current, int index) {
-        if (index == this.variables.size()) {
-            // We have a complete combination
-            LinkedHashMap<String, String> assignment = new LinkedHashMap<>();
-            for (int i = 0; i < this.variables.size(); i++) {
-                assignment.put(this.variables.get(i).name, current.get(i));
+    // This factor if it is sparse, otherwise a sparse copy with the variables of the factor.
+    private Factor asSparse() {
+        if (isSparse()) {
+            return this;
+        }
+        double[] table = denseTable();
+        int count = 0;
+        for (double value : table) {
+            if (value != 0.0) {
+                count++;
+            }
+        }
+        int[] rows = new int[count];
+        double[] values = new double[count];
+        count = 0;
+        for (int row = 0; row < table.length; row++) {
+            if (table[row] != 0.0) {
+                rows[count] = row;
+                values[count++] = table[row];
             }
-            this.setProbability(assignment, tableValues.get(this.table.size()));
+        }
+        return new Factor(variables, rows, values);
+    }
+
+    // joinAndEliminate() when some of the factors are sparse: the factors are joined left to right and the variable is
+    // summed out by the sparse kernels, so only the non-zero rows are ever multiplied or added. The products and sums
+    // are done in the same order as the dense kernel, so the values are identical. With compatibleAccounting the counts
+    // are the ones of the dense join and eliminate, otherwise the multiplies and adds that were really done.
+    private static Factor sparseJoinAndEliminate(List<Factor> factors, Variable eliminated, List<Variable> newVariables,
+                                                 int joinedMultiplies, boolean compatibleAccounting) {
+        int[] counts = new int[2]; // multiplies, adds
+        Factor joined = factors.getFirst().asSparse();
+        for (int i = 1; i < factors.size(); i++) {
+            joined = sparseJoin(joined, factors.get(i).asSparse(), counts);
+        }
+        Factor result = joined.sparseEliminate(joined.variables.indexOf(eliminated), counts);
+        if (!result.variables.equals(newVariables)) {
+            throw new IllegalStateException("Unexpected variable order " + result.variables);
+        }
+        if (compatibleAccounting) {
+            result.numOfMultiplies = joinedMultiplies;
+            result.numOfAdds = result.getTableSize();
         } else {
-            // Get possible outcomes for the current variable and
-            // Recursively generate combinations for the remaining variables
-            Variable variable = this.variables.get(index);
-            int i = 0;
-            for (String outcome : variable.outcomes) {
-                if (i == 0) {
-                    current.add(outcome);
-                } else {
-                    current.set(index, outcome);
+            result.numOfMultiplies = counts[0];
+            result.numOfAdds = counts[1];
+        }
+        return result;
+    }
+
+    // Join two sparse factors. The result has the variables of f1 followed by those only in f2, like JoinFactor().
+    // The non-zero rows of f2 are grouped by their outcomes of the shared variables, and each non-zero row of f1 is
+    // multiplied only with the group it matches. As the variables of f1 come first in the result, a result row is
+    // row1 * (the size of the f2-only variables) + the part of row2 over its own variables, so the rows come out in
+    // increasing order without sorting.
+    private static Factor sparseJoin(Factor f1, Factor f2, int[] counts) {
+        List<Variable> allVars = new ArrayList<>(f1.variables);
+        List<Integer> sharedIndices2 = new ArrayList<>();
+        List<Integer> ownIndices2 = new ArrayList<>();
+        for (int k = 0; k < f2.variables.size(); k++) {
+            Variable var = f2.variables.get(k);
+            if (f1.variables.contains(var)) {
+                sharedIndices2.add(k);
+            } else {
+                ownIndices2.add(k);
+                allVars.add(var);
+            }
+        }
+
+        // the key of a row is its assignment to the shared variables, in mixed radix over the order of f2
+        int numOfShared = sharedIndices2.size();
+        int[] sharedIndices1 = new int[numOfShared];
+        int[] keyStrides = new int[numOfShared];
+        int keyStride = 1;
+        for (int s = numOfShared - 1; s >= 0; s--) {
+            Variable var = f2.variables.get(sharedIndices2.get(s));
+            sharedIndices1[s] = f1.variables.indexOf(var);
+            keyStrides[s] = keyStride;
+            keyStride *= var.numberOfOutcomes;
+        }
+        int ownSize = 1;
+        int[] ownStrides = new int[ownIndices2.size()];
+        for (int o = ownIndices2.size() - 1; o >= 0; o--) {
+            ownStrides[o] = ownSize;
+            ownSize *= f2.variables.get(ownIndices2.get(o)).numberOfOutcomes;
+        }
+
+        // sort the rows of f2 by key, keeping the order of the rows within a key
+        int n2 = f2.sparseRows.length;
+        long[] keyed = new long[n2];
+        for (int j = 0; j < n2; j++) {
+            int row = f2.sparseRows[j];
+            int key = 0;
+            for (int s = 0; s < numOfShared; s++) {
+                key += f2.outcomeAt(row, sharedIndices2.get(s)) * keyStrides[s];
+            }
+            keyed[j] = ((long) key << 32) | j;
+        }
+        Arrays.sort(keyed);
+        int[] keys = new int[n2];
+        int[] ownRows = new int[n2];
+        double[] values2 = new double[n2];
+        for (int p = 0; p < n2; p++) {
+            int j = (int) keyed[p];
+            keys[p] = (int) (keyed[p] >>> 32);
+            int ownRow = 0;
+            for (int o = 0; o < ownStrides.length; o++) {
+                ownRow += f2.outcomeAt(f2.sparseRows[j], ownIndices2.get(o)) * ownStrides[o];
+            }
+            ownRows[p] = ownRow;
+            values2[p] = f2.sparseValues[j];
+        }
+
+        int[] rows = new int[Math.max(16, f1.sparseRows.length)];
+        double[] values = new double[rows.length];
+        int count = 0;
+        for (int i = 0; i < f1.sparseRows.length; i++) {
+            int row1 = f1.sparseRows[i];
+            int key = 0;
+            for (int s = 0; s < numOfShared; s++) {
+                key += f1.outcomeAt(row1, sharedIndices1[s]) * keyStrides[s];
+            }
+            int p = firstIndexOf(keys, key);
+            for (; p < n2 && keys[p] == key; p++) {
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, 2 * count);
+                    values = Arrays.copyOf(values, 2 * count);
                 }
-                generateCombinations(tableValues, current, index + 1);
-                i++;
+                rows[count] = row1 * ownSize + ownRows[p];
+                values[count++] = f1.sparseValues[i] * values2[p];
+            }
+        }
+        counts[0] += count;
+        return new Factor(allVars, Arrays.copyOf(rows, count), Arrays.copyOf(values, count));
+    }
+
+    // Index of the first element of the sorted array equal to key, or an index whose element isn't key.
+    private static int firstIndexOf(int[] sorted, int key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
             }
-            current.remove(index);
         }
+        return low;
     }
 
-    public double getProbability(String givenName, String givenValue) {
-        LinkedHashMap<String, String> assignment = new LinkedHashMap<>();
-        // String queryVar = givenValue.equals("T") ? "true" : "false";
-        assignment.put(givenName, givenValue);
+    // Sum out variables.get(varIndex) of a sparse factor. The non-zero rows are sorted by the row of the result they
+    // add to, and within a result row by their outcome of the variable, so every sum is in the order of the dense kernel.
+    private Factor sparseEliminate(int varIndex, int[] counts) {
+        ArrayList<Variable> newVariables = new ArrayList<>(this.variables);
+        newVariables.remove(varIndex);
+        int stride = this.strides[varIndex];
+        int block = stride * this.variables.get(varIndex).numberOfOutcomes;
+
+        int n = sparseRows.length;
+        long[] keyed = new long[n];
+        for (int i = 0; i < n; i++) {
+            int row = sparseRows[i];
+            long reducedRow = (row / block) * stride + row % stride;
+            keyed[i] = (reducedRow << 32) | i;
+        }
+        Arrays.sort(keyed);
 
-        return getProbability(assignment);
+        int[] rows = new int[n];
+        double[] values = new double[n];
+        int count = 0;
+        for (int p = 0; p < n; ) {
+            int reducedRow = (int) (keyed[p] >>> 32);
+            double sum = 0.0;
+            int first = p;
+            for (; p < n && (int) (keyed[p] >>> 32) == reducedRow; p++) {
+                sum += sparseValues[(int) keyed[p]];
+            }
+            counts[1] += p - first - 1;
+            rows[count] = reducedRow;
+            values[count++] = sum;
+        }
+        return new Factor(newVariables, Arrays.copyOf(rows, count), Arrays.copyOf(values, count));
     }
 
     public int getTotalVarsAsciiCodes() {
+        return asciiCodes(this.variables);
+    }
+
+    static int asciiCodes(List<Variable> variables) {
         // calculate the ascii code value of all the variables in the factor and return.
         int total = 0;
-        for (Variable var : this.variables) {
-            for (char c : var.name.toCharArray()) {
-                total += c;
+        for (Variable var : variables) {
+            for (int i = 0; i < var.name.length(); i++) {
+                total += var.name.charAt(i);
             }
         }
         return total;
     }
 
+    public int getNumOfAdds() {
+        return numOfAdds;
+    }
+
     public int getNumOfMultiplies() {
         return numOfMultiplies;
     }
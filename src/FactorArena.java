@@ -0,0 +1,114 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// Recycles the tables of intermediate factors. A query borrows an arena from a Pool, takes the table of every factor
+// it computes from it and gives each table back as soon as the factor has been consumed, so in steady state the same
+// arrays serve step after step and query after query instead of becoming garbage. The tables are kept by exact size:
+// the factors of a network come in few sizes, and the same sizes come back with every query of the same shape.
+// An arena is used by one query at a time. It keeps at most 'capacity' doubles, the tables given back beyond that
+// are left to the garbage collector.
+public final class FactorArena {
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private final long capacity;
+    private long retained;
+    // the free tables by size: counts[i] tables of sizes[i] rows in free[i]
+    private int numOfSizes;
+    private int[] sizes = new int[8];
+    private double[][][] free = new double[8][][];
+    private int[] counts = new int[8];
+
+    public FactorArena(long capacity) {
+        this.capacity = capacity;
+    }
+
+    // A table of the given size. Its contents are undefined, the caller writes every row.
+    double[] take(int size) {
+        int i = indexOf(size);
+        if (i < 0 || counts[i] == 0) {
+            return new double[size];
+        }
+        double[] table = free[i][--counts[i]];
+        free[i][counts[i]] = null;
+        retained -= size;
+        return table;
+    }
+
+    // Keep the table for the next take() of its size. The caller must not use it anymore.
+    void release(double[] table) {
+        if (retained + table.length > capacity) {
+            return;
+        }
+        int i = indexOf(table.length);
+        if (i < 0) {
+            if (numOfSizes == sizes.length) {
+                sizes = Arrays.copyOf(sizes, 2 * numOfSizes);
+                free = Arrays.copyOf(free, 2 * numOfSizes);
+                counts = Arrays.copyOf(counts, 2 * numOfSizes);
+            }
+            i = numOfSizes++;
+            sizes[i] = table.length;
+            free[i] = new double[4][];
+        } else if (counts[i] == free[i].length) {
+            free[i] = Arrays.copyOf(free[i], 2 * counts[i]);
+        }
+        free[i][counts[i]++] = table;
+        retained += table.length;
+    }
+
+    // The number of doubles kept for reuse.
+    public long getRetained() {
+        return retained;
+    }
+
+    private int indexOf(int size) {
+        for (int i = 0; i < numOfSizes; i++) {
+            if (sizes[i] == size) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Lends an arena to every query in flight, so concurrent queries never share one. Arenas come back with the
+    // tables of the query that used them, ready for the next one. The pool keeps at most 'maxArenas' of them, the
+    // ones given back beyond that (after a burst of concurrent queries, e.g. on virtual threads) are left to the
+    // garbage collector.
+    public static final class Pool {
+        private final long capacity;
+        private final int maxArenas;
+        private final ArrayDeque<FactorArena> arenas = new ArrayDeque<>();
+
+        // Keeps as many arenas as there are processors.
+        public Pool(long capacity) {
+            this(capacity, Runtime.getRuntime().availableProcessors());
+        }
+
+        public Pool(long capacity, int maxArenas) {
+            this.capacity = capacity;
+            this.maxArenas = maxArenas;
+        }
+
+        FactorArena borrow() {
+            synchronized (arenas) {
+                FactorArena arena = arenas.pollLast();
+                return arena != null ? arena : new FactorArena(capacity);
+            }
+        }
+
+        void giveBack(FactorArena arena) {
+            synchronized (arenas) {
+                if (arenas.size() < maxArenas) {
+                    arenas.addLast(arena);
+                }
+            }
+        }
+
+        // Drop the arenas and their tables, the next queries start with empty ones.
+        public void clear() {
+            synchronized (arenas) {
+                arenas.clear();
+            }
+        }
+    }
+}
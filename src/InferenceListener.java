@@ -0,0 +1,26 @@
+import java.util.List;
+
+// Receives the steps of an inference as they happen, with the factors involved, the operations counted
+// and the time taken in nanoseconds. The factors are the engine's own, a listener must not modify them.
+// Every method does nothing by default, so NONE costs a virtual call per step and allocates nothing.
+public interface InferenceListener {
+    InferenceListener NONE = new InferenceListener() {
+    };
+
+    // 'result' is 'factor' restricted to var = outcome.
+    default void onEvidenceReduced(Factor factor, Variable var, int outcome, Factor result, long nanos) {
+    }
+
+    default void onJoin(Factor left, Factor right, Factor result, int multiplies, long nanos) {
+    }
+
+    // 'var' was summed out of the product of 'factors' in one pass.
+    default void onJoinAndEliminate(List<Factor> factors, Variable var, Factor result, int adds, int multiplies, long nanos) {
+    }
+
+    default void onEliminate(Factor factor, Variable var, Factor result, int adds, long nanos) {
+    }
+
+    default void onNormalize(Factor factor, Factor result, int adds, long nanos) {
+    }
+}
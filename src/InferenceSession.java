@@ -0,0 +1,203 @@
+import java.util.*;
+
+// Exact inference for evidence that changes a little at a time, e.g. an interactive client observing one variable
+// after another. The session keeps the messages of a junction tree between changes. Setting or retracting the evidence
+// on a variable changes the potential of its home clique only, so only the messages sent away from that clique
+// become stale. They are recomputed when a posterior needs them, all the others are reused.
+// A session isn't meant to be shared by independent callers (its evidence is theirs), but its methods are synchronized.
+public class InferenceSession {
+    private final BayesNet network;
+    private final JunctionTree tree;
+    private final int[] evidence; // the observed outcome of every variable, -1 if unobserved
+    private final Factor[] evidencePotentials; // per clique, its potential with the evidence of its home variables
+    private final Factor[] messages; // indexed like JunctionTree.messageIndex(), null when stale
+    private final double[][] marginals; // the posteriors asked for since the last change, null otherwise
+    private int numOfAdds;
+    private int numOfMultiplies;
+
+    public InferenceSession(BayesNet network) {
+        this(new JunctionTree(network));
+    }
+
+    // Sessions may share one compiled tree, it isn't modified.
+    public InferenceSession(JunctionTree tree) {
+        this.network = tree.getNetwork();
+        this.tree = tree;
+        evidence = new int[network.getNumberOfVariables()];
+        Arrays.fill(evidence, -1);
+        evidencePotentials = new Factor[tree.getNumberOfCliques()];
+        for (int c = 0; c < evidencePotentials.length; c++) {
+            evidencePotentials[c] = tree.getPotential(c);
+        }
+        messages = new Factor[2 * tree.getNumberOfEdges()];
+        marginals = new double[network.getNumberOfVariables()][];
+    }
+
+    public void setEvidence(String varName, String outcome) {
+        Variable var = Query.resolveVariable(network, varName);
+        setEvidence(var.id, Query.resolveOutcome(var, outcome));
+    }
+
+    public synchronized void setEvidence(int varId, int outcome) {
+        if (outcome < 0 || outcome >= network.getVariable(varId).numberOfOutcomes) {
+            throw new IllegalArgumentException("Outcome " + outcome + " not found for variable " + network.getVariable(varId).name);
+        }
+        if (evidence[varId] != outcome) {
+            evidence[varId] = outcome;
+            evidenceChanged(varId);
+        }
+    }
+
+    public void retractEvidence(String varName) {
+        retractEvidence(Query.resolveVariable(network, varName).id);
+    }
+
+    public synchronized void retractEvidence(int varId) {
+        if (evidence[varId] >= 0) {
+            evidence[varId] = -1;
+            evidenceChanged(varId);
+        }
+    }
+
+    public synchronized void clearEvidence() {
+        for (int id = 0; id < evidence.length; id++) {
+            retractEvidence(id);
+        }
+    }
+
+    // Returns the observed outcome of the variable, -1 if it isn't observed.
+    public synchronized int getEvidence(int varId) {
+        return evidence[varId];
+    }
+
+    public double posterior(String varName, String outcome) {
+        Variable var = Query.resolveVariable(network, varName);
+        return posterior(var.id)[Query.resolveOutcome(var, outcome)];
+    }
+
+    // The posterior of the variable given the current evidence.
+    public synchronized double[] posterior(int varId) {
+        if (marginals[varId] == null) {
+            int home = tree.getHomeClique(varId);
+            computeMessagesTo(home);
+            Factor belief = collect(home, -1);
+            Factor marginal = belief.marginalize(List.of(network.getVariable(varId)));
+            numOfAdds += marginal.getNumOfAdds();
+            numOfAdds += marginal.normalize();
+            marginals[varId] = marginal.table;
+        }
+        return marginals[varId].clone();
+    }
+
+    // Answers the query in the same "prob,adds,multiplies" format as VariableElimination. The session's evidence
+    // becomes the query's, and the operations reported are the ones needed for the change from the previous evidence.
+    public synchronized String answer(Query query) {
+        numOfAdds = 0;
+        numOfMultiplies = 0;
+        int[] wanted = new int[evidence.length];
+        Arrays.fill(wanted, -1);
+        for (int i = 0; i < query.evidenceIds.length; i++) {
+            wanted[query.evidenceIds[i]] = query.evidenceOutcomes[i];
+        }
+        for (int id = 0; id < evidence.length; id++) {
+            if (wanted[id] < 0) {
+                retractEvidence(id);
+            } else {
+                setEvidence(id, wanted[id]);
+            }
+        }
+        double probability = posterior(query.queryVar.id)[query.queryOutcome];
+        String roundedProb = String.format("%.5f", probability);
+        return String.format("%s,%d,%d", roundedProb, numOfAdds, numOfMultiplies);
+    }
+
+    public String answer(String query) {
+        return answer(Query.parse(query, network));
+    }
+
+    private void evidenceChanged(int varId) {
+        // rebuild the potential of the home clique from the evidence of all its home variables
+        int home = tree.getHomeClique(varId);
+        Factor potential = tree.getPotential(home);
+        for (int i = 0; i < potential.variables.size(); i++) {
+            int id = potential.variables.get(i).id;
+            if (evidence[id] >= 0 && tree.getHomeClique(id) == home) {
+                if (potential == tree.getPotential(home)) {
+                    potential = new Factor(potential);
+                }
+                for (int row = 0; row < potential.table.length; row++) {
+                    if (potential.outcomeAt(row, i) != evidence[id]) {
+                        potential.table[row] = 0.0;
+                    }
+                }
+            }
+        }
+        evidencePotentials[home] = potential;
+        invalidateMessagesFrom(home);
+        Arrays.fill(marginals, null);
+    }
+
+    // Drop every message sent away from the clique. A stale message has only stale messages downstream of it,
+    // so the walk stops at the ones already dropped.
+    private void invalidateMessagesFrom(int clique) {
+        Deque<int[]> stack = new ArrayDeque<>(); // {edge, sending clique}
+        for (int e : tree.getAdjacentEdges(clique)) {
+            stack.push(new int[]{e, clique});
+        }
+        while (!stack.isEmpty()) {
+            int[] next = stack.pop();
+            int index = tree.messageIndex(next[0], next[1]);
+            if (messages[index] == null) {
+                continue;
+            }
+            messages[index] = null;
+            int receiver = tree.otherEnd(next[0], next[1]);
+            for (int e : tree.getAdjacentEdges(receiver)) {
+                if (e != next[0]) {
+                    stack.push(new int[]{e, receiver});
+                }
+            }
+        }
+    }
+
+    // Compute the stale messages sent towards the clique, each after the messages it is made of.
+    private void computeMessagesTo(int clique) {
+        Deque<int[]> stack = new ArrayDeque<>(); // {edge, sending clique}
+        for (int e : tree.getAdjacentEdges(clique)) {
+            stack.push(new int[]{e, tree.otherEnd(e, clique)});
+        }
+        while (!stack.isEmpty()) {
+            int[] next = stack.peek();
+            if (messages[tree.messageIndex(next[0], next[1])] != null) {
+                stack.pop();
+                continue;
+            }
+            boolean ready = true;
+            for (int e : tree.getAdjacentEdges(next[1])) {
+                int sender = tree.otherEnd(e, next[1]);
+                if (e != next[0] && messages[tree.messageIndex(e, sender)] == null) {
+                    stack.push(new int[]{e, sender});
+                    ready = false;
+                }
+            }
+            if (ready) {
+                stack.pop();
+                Factor message = collect(next[1], next[0]).marginalize(tree.getSeparator(next[0]));
+                numOfAdds += message.getNumOfAdds();
+                messages[tree.messageIndex(next[0], next[1])] = message;
+            }
+        }
+    }
+
+    // The potential of the clique times the messages it received over every edge but 'exceptEdge'.
+    private Factor collect(int clique, int exceptEdge) {
+        Factor product = evidencePotentials[clique];
+        for (int e : tree.getAdjacentEdges(clique)) {
+            if (e != exceptEdge) {
+                product = product.JoinFactor(messages[tree.messageIndex(e, tree.otherEnd(e, clique))]);
+                numOfMultiplies += product.getNumOfMultiplies();
+            }
+        }
+        return product;
+    }
+}
@@ -0,0 +1,339 @@
+import java.util.*;
+
+// Junction tree (clique tree) engine for many queries on a fixed network.
+// The network is compiled once into a tree of cliques. The tree is calibrated for a set of evidence with one
+// collect and one distribute sweep, after which every P(X=x|e) for that evidence is a lookup in a clique containing X.
+public final class JunctionTree {
+    private final BayesNet network;
+    private final List<List<Variable>> cliques = new ArrayList<>();
+    private final List<Factor> potentials = new ArrayList<>(); // product of the CPTs assigned to each clique
+    private final List<int[]> edges = new ArrayList<>(); // {clique a, clique b}
+    private final List<List<Variable>> separators = new ArrayList<>(); // the variables shared by the cliques of each edge
+    private final List<List<Integer>> adjacentEdges = new ArrayList<>(); // per clique, the edges touching it
+    private int[] sweepOrder; // the cliques in breadth-first order from the root of each tree
+    private int[] parentEdge; // per clique, the edge to its parent, -1 for a root
+    private final int[] homeClique; // per variable, the smallest clique containing it
+
+    // calibration state
+    private String calibratedEvidence; // Query.evidenceKey() of the evidence the tree is calibrated for
+    private Factor[] evidencePotentials; // the potentials with the rows inconsistent with the evidence set to 0
+    private Factor[] messages; // messages[2*e] goes from edges[e][0] to edges[e][1], messages[2*e+1] the other way
+    private double[][] marginals; // cached posterior of every variable that was asked for
+    private int numOfAdds;
+    private int numOfMultiplies;
+
+    public JunctionTree(BayesNet network) {
+        this.network = network;
+        int numOfVars = network.getNumberOfVariables();
+        List<List<Variable>> scopes = new ArrayList<>();
+        for (int id = 0; id < numOfVars; id++) {
+            scopes.add(network.getCpt(id).variables);
+        }
+
+        // Triangulate the moral graph by eliminating all the variables, the induced cliques are the candidates
+        EliminationOrder planner = new EliminationOrder(network, EliminationOrder.Heuristic.MIN_FILL);
+        int[] order = planner.planScopes(scopes, new BitSet(numOfVars));
+        List<BitSet> maximalCliques = maximalCliques(planner.inducedCliques(scopes, order), numOfVars);
+        for (BitSet clique : maximalCliques) {
+            List<Variable> vars = new ArrayList<>();
+            for (int id = clique.nextSetBit(0); id >= 0; id = clique.nextSetBit(id + 1)) {
+                vars.add(network.getVariable(id));
+            }
+            cliques.add(vars);
+            adjacentEdges.add(new ArrayList<>());
+        }
+        connectCliques(maximalCliques, numOfVars);
+        buildSweepOrder();
+
+        // Every CPT goes to one clique that contains its variables
+        for (List<Variable> clique : cliques) {
+            Factor potential = new Factor(clique);
+            Arrays.fill(potential.table, 1.0);
+            potentials.add(potential);
+        }
+        for (int id = 0; id < numOfVars; id++) {
+            Factor cpt = network.getCpt(id);
+            for (int c = 0; c < cliques.size(); c++) {
+                if (cliques.get(c).containsAll(cpt.variables)) {
+                    potentials.set(c, potentials.get(c).JoinFactor(cpt));
+                    break;
+                }
+            }
+        }
+
+        homeClique = new int[numOfVars];
+        for (int id = 0; id < numOfVars; id++) {
+            int best = -1;
+            for (int c = 0; c < cliques.size(); c++) {
+                if (potentials.get(c).contains(id) && (best < 0 || potentials.get(c).getTableSize() < potentials.get(best).getTableSize())) {
+                    best = c;
+                }
+            }
+            homeClique[id] = best;
+        }
+    }
+
+    // Drop the cliques contained in another one (keeping one copy of equal cliques). Only the cliques sharing the
+    // first variable of a clique can contain it.
+    private static List<BitSet> maximalCliques(List<BitSet> candidates, int numOfVars) {
+        List<List<Integer>> cliquesOf = cliquesByVariable(candidates, numOfVars);
+        List<BitSet> result = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            BitSet clique = candidates.get(i);
+            boolean contained = false;
+            for (int j : cliquesOf.get(clique.nextSetBit(0))) {
+                BitSet other = candidates.get(j);
+                // of two equal cliques only the later one is dropped
+                if (i != j && (clique.cardinality() < other.cardinality() || (clique.cardinality() == other.cardinality() && j < i))
+                        && isSubset(clique, other)) {
+                    contained = true;
+                    break;
+                }
+            }
+            if (!contained) {
+                result.add(clique);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isSubset(BitSet clique, BitSet other) {
+        for (int id = clique.nextSetBit(0); id >= 0; id = clique.nextSetBit(id + 1)) {
+            if (!other.get(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // per variable, the indices of the cliques containing it in increasing order
+    private static List<List<Integer>> cliquesByVariable(List<BitSet> cliques, int numOfVars) {
+        List<List<Integer>> cliquesOf = new ArrayList<>();
+        for (int id = 0; id < numOfVars; id++) {
+            cliquesOf.add(new ArrayList<>());
+        }
+        for (int c = 0; c < cliques.size(); c++) {
+            BitSet clique = cliques.get(c);
+            for (int id = clique.nextSetBit(0); id >= 0; id = clique.nextSetBit(id + 1)) {
+                cliquesOf.get(id).add(c);
+            }
+        }
+        return cliquesOf;
+    }
+
+    // Connect the cliques with a maximum spanning tree, weighted by the size of the separators (Kruskal). The
+    // candidate edges are the pairs of cliques sharing a variable, found through the cliques of each variable.
+    // Cliques with nothing in common are then joined by empty separators, so the result is a single tree.
+    private void connectCliques(List<BitSet> maximalCliques, int numOfVars) {
+        List<List<Integer>> cliquesOf = cliquesByVariable(maximalCliques, numOfVars);
+        List<int[]> candidates = new ArrayList<>();
+        int[] shared = new int[maximalCliques.size()]; // per clique b > a, the number of variables it shares with a
+        List<Integer> neighbours = new ArrayList<>();
+        for (int a = 0; a < maximalCliques.size(); a++) {
+            BitSet clique = maximalCliques.get(a);
+            for (int id = clique.nextSetBit(0); id >= 0; id = clique.nextSetBit(id + 1)) {
+                for (int b : cliquesOf.get(id)) {
+                    if (b > a && shared[b]++ == 0) {
+                        neighbours.add(b);
+                    }
+                }
+            }
+            Collections.sort(neighbours);
+            for (int b : neighbours) {
+                candidates.add(new int[]{a, b, shared[b]});
+                shared[b] = 0;
+            }
+            neighbours.clear();
+        }
+        candidates.sort((e1, e2) -> Integer.compare(e2[2], e1[2]));
+
+        int[] component = new int[maximalCliques.size()];
+        for (int c = 0; c < component.length; c++) {
+            component[c] = c;
+        }
+        for (int[] candidate : candidates) {
+            join(component, candidate[0], candidate[1]);
+        }
+        for (int c = 1; c < component.length; c++) {
+            join(component, 0, c);
+        }
+    }
+
+    // Add the edge between the cliques unless they are already in the same tree.
+    private void join(int[] component, int a, int b) {
+        int rootA = find(component, a);
+        int rootB = find(component, b);
+        if (rootA == rootB) {
+            return;
+        }
+        component[rootA] = rootB;
+
+        List<Variable> separator = new ArrayList<>(cliques.get(a));
+        separator.retainAll(cliques.get(b));
+        adjacentEdges.get(a).add(edges.size());
+        adjacentEdges.get(b).add(edges.size());
+        edges.add(new int[]{a, b});
+        separators.add(separator);
+    }
+
+    private static int find(int[] component, int c) {
+        while (component[c] != c) {
+            component[c] = component[component[c]];
+            c = component[c];
+        }
+        return c;
+    }
+
+    private void buildSweepOrder() {
+        sweepOrder = new int[cliques.size()];
+        parentEdge = new int[cliques.size()];
+        Arrays.fill(parentEdge, -1);
+        boolean[] visited = new boolean[cliques.size()];
+        int head = 0;
+        int tail = 0;
+        for (int root = 0; root < cliques.size(); root++) {
+            if (visited[root]) {
+                continue;
+            }
+            visited[root] = true;
+            sweepOrder[tail++] = root;
+            while (head < tail) {
+                int c = sweepOrder[head++];
+                for (int e : adjacentEdges.get(c)) {
+                    int other = otherEnd(e, c);
+                    if (!visited[other]) {
+                        visited[other] = true;
+                        parentEdge[other] = e;
+                        sweepOrder[tail++] = other;
+                    }
+                }
+            }
+        }
+    }
+
+    BayesNet getNetwork() {
+        return network;
+    }
+
+    int getNumberOfCliques() {
+        return cliques.size();
+    }
+
+    int getNumberOfEdges() {
+        return edges.size();
+    }
+
+    Factor getPotential(int clique) {
+        return potentials.get(clique);
+    }
+
+    List<Integer> getAdjacentEdges(int clique) {
+        return adjacentEdges.get(clique);
+    }
+
+    List<Variable> getSeparator(int edge) {
+        return separators.get(edge);
+    }
+
+    // the clique holding the evidence on the variable
+    int getHomeClique(int varId) {
+        return homeClique[varId];
+    }
+
+    int otherEnd(int edge, int clique) {
+        int[] ends = edges.get(edge);
+        return ends[0] == clique ? ends[1] : ends[0];
+    }
+
+    // index in 'messages' of the message sent over 'edge' from 'clique'
+    int messageIndex(int edge, int clique) {
+        return edges.get(edge)[0] == clique ? 2 * edge : 2 * edge + 1;
+    }
+
+    // Calibrate the tree for the evidence: collect messages to the roots, then distribute them back to the leaves.
+    public void calibrate(int[] evidenceIds, int[] evidenceOutcomes) {
+        evidencePotentials = potentials.toArray(new Factor[0]);
+        for (int i = 0; i < evidenceIds.length; i++) {
+            int c = homeClique[evidenceIds[i]];
+            Factor potential = new Factor(evidencePotentials[c]);
+            int varIndex = potential.indexOfVariable(evidenceIds[i]);
+            for (int row = 0; row < potential.table.length; row++) {
+                if (potential.outcomeAt(row, varIndex) != evidenceOutcomes[i]) {
+                    potential.table[row] = 0.0;
+                }
+            }
+            evidencePotentials[c] = potential;
+        }
+
+        messages = new Factor[2 * edges.size()];
+        marginals = new double[network.getNumberOfVariables()][];
+        for (int i = sweepOrder.length - 1; i >= 0; i--) {
+            int c = sweepOrder[i];
+            if (parentEdge[c] >= 0) {
+                sendMessage(c, parentEdge[c]);
+            }
+        }
+        for (int c : sweepOrder) {
+            for (int e : adjacentEdges.get(c)) {
+                if (e != parentEdge[c]) {
+                    sendMessage(c, e);
+                }
+            }
+        }
+    }
+
+    private void sendMessage(int from, int edge) {
+        Factor product = collect(from, edge);
+        Factor message = product.marginalize(separators.get(edge));
+        numOfAdds += message.getNumOfAdds();
+        messages[messageIndex(edge, from)] = message;
+    }
+
+    // The potential of the clique times the messages it received over every edge but 'exceptEdge'.
+    private Factor collect(int clique, int exceptEdge) {
+        Factor product = evidencePotentials[clique];
+        for (int e : adjacentEdges.get(clique)) {
+            if (e != exceptEdge) {
+                product = product.JoinFactor(messages[messageIndex(e, otherEnd(e, clique))]);
+                numOfMultiplies += product.getNumOfMultiplies();
+            }
+        }
+        return product;
+    }
+
+    // The posterior of the variable given the evidence the tree is calibrated for.
+    public double[] marginal(int varId) {
+        if (marginals[varId] == null) {
+            Factor belief = collect(homeClique[varId], -1);
+            Factor marginal = belief.marginalize(List.of(network.getVariable(varId)));
+            numOfAdds += marginal.getNumOfAdds();
+            numOfAdds += marginal.normalize();
+            marginals[varId] = marginal.table;
+        }
+        return marginals[varId];
+    }
+
+    // Answers the query in the same "prob,adds,multiplies" format as VariableElimination. The operations reported
+    // are the ones done for this query: the calibration when the evidence changed, and the lookup of the marginal,
+    // so a query after another one with the same evidence reports only those of its marginal, or 0,0 if cached.
+    public String answer(Query query) {
+        // an observed query variable has posterior 1 at its observed outcome and 0 at the others, like in
+        // VariableElimination it is answered without calibrating
+        for (int i = 0; i < query.evidenceIds.length; i++) {
+            if (query.evidenceIds[i] == query.queryVar.id) {
+                double probability = query.evidenceOutcomes[i] == query.queryOutcome ? 1.0 : 0.0;
+                return String.format("%.5f,0,0", probability);
+            }
+        }
+        numOfAdds = 0;
+        numOfMultiplies = 0;
+        String evidenceKey = query.evidenceKey();
+        if (!evidenceKey.equals(calibratedEvidence)) {
+            calibrate(query.evidenceIds, query.evidenceOutcomes);
+            calibratedEvidence = evidenceKey;
+        }
+        double probability = marginal(query.queryVar.id)[query.queryOutcome];
+        String roundedProb = String.format("%.5f", probability);
+        return String.format("%s,%d,%d", roundedProb, numOfAdds, numOfMultiplies);
+    }
+}
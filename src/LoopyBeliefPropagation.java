@@ -0,0 +1,278 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+// Loopy belief propagation (sum-product) on the factor graph of the network: one factor node per CPT, joined by an edge
+// to every variable of the CPT. Every iteration updates all the factor-to-variable messages from the previous
+// variable-to-factor messages and then all the variable-to-factor messages (a flooding schedule), so each edge is
+// computed independently of the others and large graphs update their edges in parallel. The cost of an iteration is
+// linear in the total size of the CPTs. The beliefs are exact on trees, and approximations on graphs with loops.
+public class LoopyBeliefPropagation {
+    // below this many edges the updates run on the calling thread
+    private static final int PARALLEL_EDGES = 1024;
+
+    private final BayesNet network;
+    private final int numOfEdges;
+    // per factor (indexed like its variable): the ids, strides and cardinalities of its variables and its table,
+    // and the edges of the factor, edgeStart[f]..edgeStart[f+1]-1, in the order of its variables
+    private final int[][] cptVarIds;
+    private final int[][] cptStrides;
+    private final int[][] cptCardinalities;
+    private final double[][] cptTables;
+    private final int[] edgeStart;
+    // per edge: its factor, its variable, the position of the variable in the factor, and where its messages start
+    private final int[] edgeFactor;
+    private final int[] edgeVar;
+    private final int[] edgePosition;
+    private final int[] messageStart;
+    private final int messageLength;
+    private final int[][] varEdges; // per variable, the edges touching it
+
+    private double damping = 0.0; // the weight of the old message in every factor-to-variable update
+    private double tolerance = 1e-6;
+    private int maxIterations = 100;
+
+    // the beliefs for the last evidence that was asked for
+    private String beliefsEvidence;
+    private Beliefs beliefs;
+
+    // The posterior marginal of every variable, with the number of iterations run and whether they converged.
+    public static class Beliefs {
+        final double[][] marginals;
+        final int iterations;
+        final boolean converged;
+
+        Beliefs(double[][] marginals, int iterations, boolean converged) {
+            this.marginals = marginals;
+            this.iterations = iterations;
+            this.converged = converged;
+        }
+
+        public double[] marginal(int varId) {
+            return marginals[varId];
+        }
+    }
+
+    public LoopyBeliefPropagation(BayesNet network) {
+        this.network = network;
+        int numOfVars = network.getNumberOfVariables();
+        cptVarIds = new int[numOfVars][];
+        cptStrides = new int[numOfVars][];
+        cptCardinalities = new int[numOfVars][];
+        cptTables = new double[numOfVars][];
+        edgeStart = new int[numOfVars + 1];
+        for (int f = 0; f < numOfVars; f++) {
+            Factor cpt = network.getCpt(f);
+            cptVarIds[f] = new int[cpt.variables.size()];
+            for (int i = 0; i < cptVarIds[f].length; i++) {
+                cptVarIds[f][i] = cpt.variables.get(i).id;
+            }
+            cptStrides[f] = cpt.strides;
+            cptCardinalities[f] = cpt.cardinalities();
+            cptTables[f] = cpt.table;
+            edgeStart[f + 1] = edgeStart[f] + cptVarIds[f].length;
+        }
+
+        numOfEdges = edgeStart[numOfVars];
+        edgeFactor = new int[numOfEdges];
+        edgeVar = new int[numOfEdges];
+        edgePosition = new int[numOfEdges];
+        messageStart = new int[numOfEdges];
+        int[] degree = new int[numOfVars];
+        int length = 0;
+        for (int f = 0; f < numOfVars; f++) {
+            for (int e = edgeStart[f]; e < edgeStart[f + 1]; e++) {
+                edgeFactor[e] = f;
+                edgePosition[e] = e - edgeStart[f];
+                edgeVar[e] = cptVarIds[f][edgePosition[e]];
+                messageStart[e] = length;
+                length += network.getVariable(edgeVar[e]).numberOfOutcomes;
+                degree[edgeVar[e]]++;
+            }
+        }
+        messageLength = length;
+        varEdges = new int[numOfVars][];
+        for (int v = 0; v < numOfVars; v++) {
+            varEdges[v] = new int[degree[v]];
+            degree[v] = 0;
+        }
+        for (int e = 0; e < numOfEdges; e++) {
+            varEdges[edgeVar[e]][degree[edgeVar[e]]++] = e;
+        }
+    }
+
+    // the settings below change the beliefs, so they drop the ones kept for the last evidence.
+    public synchronized void setDamping(double damping) {
+        if (damping < 0.0 || damping >= 1.0) {
+            throw new IllegalArgumentException("The damping must be in [0, 1): " + damping);
+        }
+        this.damping = damping;
+        beliefsEvidence = null;
+    }
+
+    // Stop when no message changes by more than this in an iteration.
+    public synchronized void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+        beliefsEvidence = null;
+    }
+
+    public synchronized void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+        beliefsEvidence = null;
+    }
+
+    // Answers the query in the format "probability,iterations". The beliefs are computed once per evidence,
+    // so consecutive queries with the same evidence are lookups.
+    public String answer(String query) {
+        return answer(Query.parse(query, network));
+    }
+
+    public String answer(Query query) {
+        Beliefs result;
+        String evidenceKey = query.evidenceKey();
+        synchronized (this) {
+            if (!evidenceKey.equals(beliefsEvidence)) {
+                beliefs = run(query.evidenceIds, query.evidenceOutcomes);
+                beliefsEvidence = evidenceKey;
+            }
+            result = beliefs;
+        }
+        double probability = result.marginal(query.queryVar.id)[query.queryOutcome];
+        return String.format("%.5f,%d", probability, result.iterations);
+    }
+
+    // Run belief propagation with the evidence clamped and return the marginals of all the variables.
+    public Beliefs run(int[] evidenceIds, int[] evidenceOutcomes) {
+        int numOfVars = network.getNumberOfVariables();
+        int[] evidence = new int[numOfVars]; // the observed outcome of every variable, -1 if unobserved
+        Arrays.fill(evidence, -1);
+        for (int i = 0; i < evidenceIds.length; i++) {
+            evidence[evidenceIds[i]] = evidenceOutcomes[i];
+        }
+
+        double[] toVar = new double[messageLength];
+        double[] nextToVar = new double[messageLength];
+        double[] toFactor = new double[messageLength];
+        double[] changes = new double[numOfEdges];
+        for (int e = 0; e < numOfEdges; e++) {
+            int cardinality = network.getVariable(edgeVar[e]).numberOfOutcomes;
+            Arrays.fill(toVar, messageStart[e], messageStart[e] + cardinality, 1.0 / cardinality);
+        }
+        for (int e = 0; e < numOfEdges; e++) {
+            updateToFactor(e, toVar, toFactor, evidence);
+        }
+
+        int iterations = 0;
+        boolean converged = false;
+        while (iterations < maxIterations && !converged) {
+            double[] oldToVar = toVar;
+            double[] newToVar = nextToVar;
+            forEachEdge(e -> changes[e] = updateToVar(e, toFactor, oldToVar, newToVar));
+            nextToVar = toVar;
+            toVar = newToVar;
+            double[] currentToVar = toVar;
+            forEachEdge(e -> updateToFactor(e, currentToVar, toFactor, evidence));
+
+            double maxChange = 0.0;
+            for (double change : changes) {
+                maxChange = Math.max(maxChange, change);
+            }
+            iterations++;
+            converged = maxChange < tolerance;
+        }
+
+        double[][] marginals = new double[numOfVars][];
+        for (int v = 0; v < numOfVars; v++) {
+            int cardinality = network.getVariable(v).numberOfOutcomes;
+            double[] belief = new double[cardinality];
+            for (int x = 0; x < cardinality; x++) {
+                belief[x] = evidence[v] < 0 || evidence[v] == x ? 1.0 : 0.0;
+            }
+            for (int e : varEdges[v]) {
+                for (int x = 0; x < cardinality; x++) {
+                    belief[x] *= toVar[messageStart[e] + x];
+                }
+            }
+            normalize(belief, 0, cardinality);
+            marginals[v] = belief;
+        }
+        return new Beliefs(marginals, iterations, converged);
+    }
+
+    private interface EdgeUpdate {
+        void update(int edge);
+    }
+
+    private void forEachEdge(EdgeUpdate update) {
+        if (numOfEdges < PARALLEL_EDGES) {
+            for (int e = 0; e < numOfEdges; e++) {
+                update.update(e);
+            }
+        } else {
+            IntStream.range(0, numOfEdges).parallel().forEach(update::update);
+        }
+    }
+
+    // The message from the factor of edge e to its variable: the factor times the messages from its other variables,
+    // summed over them. Returns the largest change from the previous message.
+    private double updateToVar(int e, double[] toFactor, double[] oldToVar, double[] newToVar) {
+        int f = edgeFactor[e];
+        int[] ids = cptVarIds[f];
+        int[] strides = cptStrides[f];
+        int[] cardinalities = cptCardinalities[f];
+        double[] table = cptTables[f];
+        int position = edgePosition[e];
+        int start = messageStart[e];
+        int cardinality = cardinalities[position];
+        Arrays.fill(newToVar, start, start + cardinality, 0.0);
+
+        for (int row = 0; row < table.length; row++) {
+            double product = table[row];
+            for (int i = 0; i < ids.length && product != 0.0; i++) {
+                if (i != position) {
+                    int outcome = (row / strides[i]) % cardinalities[i];
+                    product *= toFactor[messageStart[edgeStart[f] + i] + outcome];
+                }
+            }
+            newToVar[start + (row / strides[position]) % cardinality] += product;
+        }
+        normalize(newToVar, start, cardinality);
+
+        double change = 0.0;
+        for (int x = start; x < start + cardinality; x++) {
+            newToVar[x] = (1.0 - damping) * newToVar[x] + damping * oldToVar[x];
+            change = Math.max(change, Math.abs(newToVar[x] - oldToVar[x]));
+        }
+        return change;
+    }
+
+    // The message from the variable of edge e to its factor: the evidence indicator of the variable times the messages
+    // from its other factors.
+    private void updateToFactor(int e, double[] toVar, double[] toFactor, int[] evidence) {
+        int v = edgeVar[e];
+        int start = messageStart[e];
+        int cardinality = network.getVariable(v).numberOfOutcomes;
+        for (int x = 0; x < cardinality; x++) {
+            toFactor[start + x] = evidence[v] < 0 || evidence[v] == x ? 1.0 : 0.0;
+        }
+        for (int other : varEdges[v]) {
+            if (other != e) {
+                for (int x = 0; x < cardinality; x++) {
+                    toFactor[start + x] *= toVar[messageStart[other] + x];
+                }
+            }
+        }
+        normalize(toFactor, start, cardinality);
+    }
+
+    // Scale values[start..start+length-1] to sum to 1. A message that is all zeros (contradicting evidence)
+    // becomes uniform, so that it doesn't turn the other messages into NaN.
+    private static void normalize(double[] values, int start, int length) {
+        double total = 0.0;
+        for (int i = start; i < start + length; i++) {
+            total += values[i];
+        }
+        for (int i = start; i < start + length; i++) {
+            values[i] = total == 0.0 ? 1.0 / length : values[i] / total;
+        }
+    }
+}
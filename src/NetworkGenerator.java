@@ -0,0 +1,155 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Deterministic generator of random networks and queries, for benchmarks and for testing on more than alarm_net.xml.
+// The variables V0..Vn-1 each get 1..maxParents parents among the 'treewidth' variables just before them.
+// Every edge (and every edge of the moral graph) then joins variables less than 'treewidth' apart in that order,
+// so the treewidth of the network is at most 'treewidth'. The same arguments and seed always give the same network.
+public class NetworkGenerator {
+    // java NetworkGenerator <numOfVars> <maxParents> <cardinality> <treewidth> <seed> <network.xml> [<input.txt> <numOfQueries>]
+    public static void main(String[] args) throws IOException {
+        if (args.length != 6 && args.length != 8) {
+            System.out.println("Usage: java NetworkGenerator <numOfVars> <maxParents> <cardinality> <treewidth> <seed> <network.xml> [<input.txt> <numOfQueries>]");
+            return;
+        }
+        long seed = Long.parseLong(args[4]);
+        BayesNet network = generate(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]), seed);
+        writeXml(network, args[5]);
+        if (args.length == 8) {
+            try (BufferedWriter out = new BufferedWriter(new FileWriter(args[6]))) {
+                out.write(args[5] + "\n");
+                for (String query : randomQueries(network, Integer.parseInt(args[7]), 2, seed)) {
+                    out.write(query + "\n");
+                }
+            }
+        }
+    }
+
+    // Returns an initialized network of 'numOfVars' variables with 'cardinality' outcomes each.
+    public static BayesNet generate(int numOfVars, int maxParents, int cardinality, int treewidth, long seed) {
+        if (numOfVars < 1 || maxParents < 0 || cardinality < 2 || treewidth < 1) {
+            throw new IllegalArgumentException("Invalid network size: " + numOfVars + " variables, " + maxParents
+                    + " parents, " + cardinality + " outcomes, treewidth " + treewidth);
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        BayesNet network = new BayesNet();
+        ArrayList<String> outcomes = new ArrayList<>();
+        for (int k = 0; k < cardinality; k++) {
+            outcomes.add("s" + k);
+        }
+
+        for (int i = 0; i < numOfVars; i++) {
+            Variable var = new Variable("V" + i, outcomes);
+            network.addVariable(var);
+
+            // pick the parents among the previous 'treewidth' variables, in increasing order
+            int windowStart = Math.max(0, i - treewidth);
+            int window = i - windowStart;
+            int numOfParents = Math.min(maxParents, window) == 0 ? 0 : 1 + random.nextInt(Math.min(maxParents, window));
+            List<Variable> factorVars = new ArrayList<>();
+            List<String> given = new ArrayList<>();
+            int needed = numOfParents;
+            for (int p = windowStart; p < i && needed > 0; p++) {
+                // selection sampling: every subset of the window is equally likely
+                if (random.nextInt(i - p) < needed) {
+                    Variable parent = network.variables.get(p);
+                    factorVars.add(parent);
+                    given.add(parent.name);
+                    needed--;
+                }
+            }
+            factorVars.add(var);
+
+            Factor cpt = new Factor(factorVars);
+            cpt.given = given;
+            double[] values = new double[cpt.table.length];
+            // the outcomes of the variable are the last (fastest) index, so each block of 'cardinality' rows is a distribution
+            for (int block = 0; block < values.length; block += cardinality) {
+                double total = 0.0;
+                for (int k = 0; k < cardinality; k++) {
+                    values[block + k] = 0.05 + random.nextDouble();
+                    total += values[block + k];
+                }
+                for (int k = 0; k < cardinality; k++) {
+                    values[block + k] /= total;
+                }
+            }
+            cpt.populateTable(values);
+            network.cpts.put(var.name, cpt);
+        }
+        network.initialize();
+        return network;
+    }
+
+    // Returns a factor over the variables fromId..fromId+numOfVars-1 of the network, with random positive values.
+    public static Factor randomFactor(BayesNet network, int fromId, int numOfVars, long seed) {
+        List<Variable> vars = new ArrayList<>();
+        for (int id = fromId; id < fromId + numOfVars; id++) {
+            vars.add(network.getVariable(id));
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        Factor factor = new Factor(vars);
+        for (int row = 0; row < factor.table.length; row++) {
+            factor.table[row] = 0.05 + random.nextDouble();
+        }
+        return factor;
+    }
+
+    // Returns 'count' queries "P(X=x|E1=e1,...)" with 'numOfEvidence' evidence variables other than X, and no
+    // elimination order (the engine plans one).
+    public static List<String> randomQueries(BayesNet network, int count, int numOfEvidence, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int numOfVars = network.getNumberOfVariables();
+        numOfEvidence = Math.min(numOfEvidence, numOfVars - 1);
+        List<String> queries = new ArrayList<>();
+        for (int q = 0; q < count; q++) {
+            Variable queryVar = network.getVariable(random.nextInt(numOfVars));
+            StringBuilder query = new StringBuilder("P(").append(queryVar.name).append('=')
+                    .append(queryVar.outcomes.get(random.nextInt(queryVar.numberOfOutcomes))).append('|');
+            List<Variable> evidence = new ArrayList<>();
+            while (evidence.size() < numOfEvidence) {
+                Variable var = network.getVariable(random.nextInt(numOfVars));
+                if (var != queryVar && !evidence.contains(var)) {
+                    evidence.add(var);
+                }
+            }
+            for (int e = 0; e < evidence.size(); e++) {
+                Variable var = evidence.get(e);
+                query.append(e == 0 ? "" : ",").append(var.name).append('=')
+                        .append(var.outcomes.get(random.nextInt(var.numberOfOutcomes)));
+            }
+            queries.add(query.append(')').toString());
+        }
+        return queries;
+    }
+
+    // Write the network in the XMLBIF layout of alarm_net.xml.
+    public static void writeXml(BayesNet network, String path) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(path))) {
+            out.write("<NETWORK>\n");
+            for (Variable var : network.variables) {
+                out.write("<VARIABLE>\n\t<NAME>" + var.name + "</NAME>\n");
+                for (String outcome : var.outcomes) {
+                    out.write("\t<OUTCOME>" + outcome + "</OUTCOME>\n");
+                }
+                out.write("</VARIABLE>\n\n");
+            }
+            for (Variable var : network.variables) {
+                Factor cpt = network.cpts.get(var.name);
+                out.write("<DEFINITION>\n\t<FOR>" + var.name + "</FOR>\n");
+                for (String parent : cpt.given) {
+                    out.write("\t<GIVEN>" + parent + "</GIVEN>\n");
+                }
+                out.write("\t<TABLE>");
+                for (int row = 0; row < cpt.table.length; row++) {
+                    out.write((row == 0 ? "" : " ") + cpt.table[row]);
+                }
+                out.write("</TABLE>\n</DEFINITION>\n\n");
+            }
+            out.write("</NETWORK>\n");
+        }
+    }
+}
@@ -0,0 +1,298 @@
+import java.util.*;
+
+// A query shape compiled once by VariableElimination.prepare(): the query variable, which variables are observed and
+// the elimination order are fixed, the observed outcomes and the query outcome are given to every execution.
+// The steps are those of the EliminationPlan VariableElimination runs for the same query, compiled once into the
+// strides of every operand, with the operation counts. An execution reads the CPTs in place, at an offset given by
+// the evidence outcomes, and writes the steps' tables into buffers it borrows from an arena sized for the plan: every
+// intermediate table goes back to the arena as soon as the next step has read it, so in steady state an execution
+// allocates no tables at all.
+// The answers are the ones VariableElimination.answer() gives for the same query. The tables are always dense, so
+// without compatible accounting VariableElimination only prepares queries when it stores no factor sparse, and no
+// listener is told about the steps.
+// A plan is immutable and every execution borrows a workspace of its own, so any number of threads may execute it
+// at once.
+public final class PreparedQuery {
+    // the most workspaces kept between executions, the ones given back beyond that are left to the garbage collector
+    private static final int MAX_WORKSPACES = Runtime.getRuntime().availableProcessors();
+
+    // One step of the plan writes the table of its output slot from the tables of its input slots.
+    private static final class Step {
+        final byte kind; // an EliminationPlan kind, ELIMINATE runs as a JOIN_AND_ELIMINATE of a single input
+        final int[] inputs;
+        final int output;
+        final int[][] inputStrides; // the strides in the tables of the inputs over the variables of the output
+        final int[] eliminatedStrides; // the strides of the eliminated variable in the inputs (0 if absent)
+        final int eliminatedCardinality;
+        final int[] cardinalities; // of the variables of the output
+        final int size;
+
+        // 'strides' are those of the tables of the slots
+        Step(EliminationPlan.Step step, List<List<Variable>> scopes, int[][] strides) {
+            this.kind = step.kind;
+            this.inputs = step.inputs;
+            this.output = step.output;
+            List<Variable> outputScope = scopes.get(output);
+            this.inputStrides = new int[inputs.length][];
+            this.eliminatedStrides = new int[inputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                List<Variable> scope = scopes.get(inputs[i]);
+                inputStrides[i] = Factor.stridesOver(scope, strides[inputs[i]], outputScope);
+                if (step.eliminated != null) {
+                    eliminatedStrides[i] = Factor.stridesOver(scope, strides[inputs[i]], List.of(step.eliminated))[0];
+                }
+            }
+            this.eliminatedCardinality = step.eliminated == null ? 0 : step.eliminated.numberOfOutcomes;
+            this.cardinalities = Factor.cardinalities(outputScope);
+            this.size = Factor.tableSize(outputScope);
+        }
+    }
+
+    private final Variable queryVar;
+    private final int[] evidenceIds;
+    // per requisite CPT, slot i: its table, and the positions in evidenceIds of the observed variables it contains
+    // with their strides in the CPT
+    private final double[][] cptTables;
+    private final int[][] cptEvidencePositions;
+    private final int[][] cptEvidenceStrides;
+    private final Step[] steps;
+    private final int numOfSlots;
+    private final int resultSlot; // a table over the query variable only
+    private final int resultStride; // the stride of the query variable in it
+    private final int observedQueryPosition; // see EliminationPlan
+    private final int numOfAdds;
+    private final int numOfMultiplies;
+    private final int maxVariables; // of a step's output
+    private final int maxInputs; // of a step
+    private final long arenaCapacity;
+    // the workspaces of the executions that are not running, see Workspace, at most MAX_WORKSPACES
+    private final ArrayDeque<Workspace> workspaces = new ArrayDeque<>();
+
+    // What an execution writes besides the tables: the table and offset of every slot, the operands of every step and
+    // the state of the kernels, with the arena that holds the tables. Every execution borrows a workspace of its own
+    // and gives it back, so in steady state an execution allocates nothing but the posterior it returns.
+    private final class Workspace {
+        final double[][] tables = new double[numOfSlots][];
+        final int[] offsets = new int[numOfSlots];
+        final double[][][] operands = new double[steps.length][][];
+        final int[][] operandOffsets = new int[steps.length][];
+        final int[] digits = new int[maxVariables];
+        final int[] baseRows = new int[maxInputs];
+        final FactorArena arena = new FactorArena(arenaCapacity);
+
+        Workspace() {
+            for (int s = 0; s < steps.length; s++) {
+                operands[s] = new double[steps[s].inputs.length][];
+                operandOffsets[s] = new int[steps[s].inputs.length];
+            }
+        }
+    }
+
+    PreparedQuery(BayesNet network, int queryVarId, int[] evidenceIds, int[] eliminationOrder,
+                  EliminationOrder planner, boolean overrideOrder, boolean compatibleAccounting) {
+        this.queryVar = network.getVariable(queryVarId);
+        this.evidenceIds = evidenceIds.clone();
+        BitSet evidence = new BitSet(network.getNumberOfVariables());
+        for (int evidenceId : evidenceIds) {
+            if (evidence.get(evidenceId)) {
+                throw new IllegalArgumentException("The evidence variables must be distinct");
+            }
+            evidence.set(evidenceId);
+        }
+        for (int id : eliminationOrder) {
+            if (id == queryVarId) {
+                throw new IllegalArgumentException("The elimination order can't contain the query variable " + queryVar.name);
+            }
+        }
+
+        EliminationPlan plan = new EliminationPlan(network, queryVarId, this.evidenceIds, eliminationOrder, planner, overrideOrder);
+        int numOfCpts = plan.cptIds.length;
+        cptTables = new double[numOfCpts][];
+        cptEvidencePositions = new int[numOfCpts][];
+        cptEvidenceStrides = new int[numOfCpts][];
+        // the strides of the variables of every slot in its table: the CPTs are read in place, the intermediate
+        // tables are dense
+        int[][] strides = new int[plan.getNumberOfSlots()][];
+        for (int slot = 0; slot < numOfCpts; slot++) {
+            Factor cpt = network.getCpt(plan.cptIds[slot]);
+            List<Integer> positions = new ArrayList<>();
+            List<Variable> observed = new ArrayList<>();
+            for (Variable var : cpt.variables) {
+                if (evidence.get(var.id)) {
+                    positions.add(indexOf(evidenceIds, var.id));
+                    observed.add(var);
+                }
+            }
+            cptTables[slot] = cpt.table;
+            cptEvidencePositions[slot] = positions.stream().mapToInt(Integer::intValue).toArray();
+            cptEvidenceStrides[slot] = cpt.stridesOver(observed);
+            strides[slot] = cpt.stridesOver(plan.scopes.get(slot));
+        }
+        for (int slot = numOfCpts; slot < strides.length; slot++) {
+            strides[slot] = Factor.computeStrides(plan.scopes.get(slot));
+        }
+        List<Step> plannedSteps = new ArrayList<>();
+        for (EliminationPlan.Step step : plan.steps) {
+            plannedSteps.add(new Step(step, plan.scopes, strides));
+        }
+
+        // the arenas keep every table an execution allocates: replay the takes and releases of one, counting the
+        // tables for which no free one of the same size is left
+        Map<Integer, Integer> freeTables = new HashMap<>();
+        long footprint = 0;
+        for (Step step : plannedSteps) {
+            if (freeTables.getOrDefault(step.size, 0) > 0) {
+                freeTables.merge(step.size, -1, Integer::sum);
+            } else {
+                footprint += step.size;
+            }
+            for (int input : step.inputs) {
+                if (input >= numOfCpts) {
+                    freeTables.merge(plannedSteps.get(input - numOfCpts).size, 1, Integer::sum);
+                }
+            }
+        }
+
+        this.steps = plannedSteps.toArray(new Step[0]);
+        this.numOfSlots = strides.length;
+        this.resultSlot = plan.resultSlot;
+        this.resultStride = plan.resultSlot < 0 ? 0 : strides[plan.resultSlot][0];
+        this.observedQueryPosition = plan.observedQueryPosition;
+        this.numOfAdds = plan.numOfAdds(compatibleAccounting);
+        this.numOfMultiplies = plan.numOfMultiplies(compatibleAccounting);
+        this.arenaCapacity = footprint;
+        int variables = 0;
+        int inputs = 0;
+        for (Step step : plannedSteps) {
+            variables = Math.max(variables, step.cardinalities.length);
+            inputs = Math.max(inputs, step.inputs.length);
+        }
+        this.maxVariables = variables;
+        this.maxInputs = inputs;
+    }
+
+    public Variable getQueryVariable() {
+        return queryVar;
+    }
+
+    // The ids of the observed variables, in the order their outcomes are given to the executions.
+    public int[] getEvidenceIds() {
+        return evidenceIds.clone();
+    }
+
+    // The posterior of the query variable given the outcomes of the evidence variables.
+    public double[] posterior(int[] evidenceOutcomes) {
+        if (evidenceOutcomes.length != evidenceIds.length) {
+            throw new IllegalArgumentException("Expected " + evidenceIds.length + " evidence outcomes but got " + evidenceOutcomes.length);
+        }
+        if (observedQueryPosition >= 0) {
+            double[] result = new double[queryVar.numberOfOutcomes];
+            result[evidenceOutcomes[observedQueryPosition]] = 1.0;
+            return result;
+        }
+        Workspace workspace;
+        synchronized (workspaces) {
+            workspace = workspaces.pollLast();
+        }
+        if (workspace == null) {
+            workspace = new Workspace();
+        }
+        double[][] tables = workspace.tables;
+        int[] offsets = workspace.offsets;
+        FactorArena arena = workspace.arena;
+
+        // the CPT slots are the CPT tables, starting at the rows of the observed outcomes
+        for (int slot = 0; slot < cptTables.length; slot++) {
+            tables[slot] = cptTables[slot];
+            offsets[slot] = 0;
+            for (int i = 0; i < cptEvidencePositions[slot].length; i++) {
+                offsets[slot] += evidenceOutcomes[cptEvidencePositions[slot][i]] * cptEvidenceStrides[slot][i];
+            }
+        }
+        for (int s = 0; s < steps.length; s++) {
+            Step step = steps[s];
+            double[] output = arena.take(step.size);
+            double[][] operands = workspace.operands[s];
+            int[] operandOffsets = workspace.operandOffsets[s];
+            for (int i = 0; i < operands.length; i++) {
+                operands[i] = tables[step.inputs[i]];
+                operandOffsets[i] = offsets[step.inputs[i]];
+            }
+            if (step.size <= Factor.getParallelThreshold()) {
+                run(step, operands, operandOffsets, output, 0, step.size, workspace.digits, workspace.baseRows);
+            } else {
+                // the row ranges run on several threads, each with a state of its own
+                Factor.forEachRowRange(step.size, (from, to) -> run(step, operands, operandOffsets, output, from, to,
+                        new int[step.cardinalities.length], new int[operands.length]));
+            }
+            tables[step.output] = output;
+            // every intermediate table is read by exactly one step
+            for (int input : step.inputs) {
+                if (input >= cptTables.length) {
+                    arena.release(tables[input]);
+                }
+            }
+        }
+
+        double[] result = new double[queryVar.numberOfOutcomes];
+        for (int outcome = 0; outcome < result.length; outcome++) {
+            result[outcome] = tables[resultSlot][offsets[resultSlot] + outcome * resultStride];
+        }
+        if (resultSlot >= cptTables.length) {
+            arena.release(tables[resultSlot]);
+        }
+        synchronized (workspaces) {
+            if (workspaces.size() < MAX_WORKSPACES) {
+                workspaces.addLast(workspace);
+            }
+        }
+
+        double total = 0.0;
+        for (double probability : result) {
+            total += probability;
+        }
+        for (int row = 0; row < result.length; row++) {
+            result[row] /= total;
+        }
+        return result;
+    }
+
+    // Fill the rows [from, to) of the output of the step.
+    private static void run(Step step, double[][] operands, int[] operandOffsets, double[] output, int from, int to,
+                            int[] digits, int[] baseRows) {
+        if (step.kind != EliminationPlan.JOIN) {
+            Factor.joinAndEliminateRows(operands, operandOffsets, step.inputStrides, step.eliminatedStrides,
+                    step.eliminatedCardinality, step.cardinalities, output, from, to, digits, baseRows);
+        } else {
+            Factor.joinRows(operands[0], operandOffsets[0], step.inputStrides[0], operands[1], operandOffsets[1],
+                    step.inputStrides[1], step.cardinalities, output, from, to, digits);
+        }
+    }
+
+    public double probability(int[] evidenceOutcomes, int queryOutcome) {
+        return posterior(evidenceOutcomes)[queryOutcome];
+    }
+
+    // Answers in the same "prob,adds,multiplies" format as VariableElimination.answer().
+    public String answer(int[] evidenceOutcomes, int queryOutcome) {
+        String roundedProb = String.format("%.5f", probability(evidenceOutcomes, queryOutcome));
+        return String.format("%s,%d,%d", roundedProb, numOfAdds, numOfMultiplies);
+    }
+
+    public int getNumOfAdds() {
+        return numOfAdds;
+    }
+
+    public int getNumOfMultiplies() {
+        return numOfMultiplies;
+    }
+
+    private static int indexOf(int[] ids, int id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// A parsed "P(X=x|E1=e1,E2=e2) A-B-C" query. The names are resolved once, so the engines
+// only see variable ids and outcome indices.
+public class Query {
+    final Variable queryVar;
+    final int queryOutcome;
+    final int[] evidenceIds;
+    final int[] evidenceOutcomes;
+    final int[] eliminationOrder; // empty when the query doesn't give one
+
+    Query(Variable queryVar, int queryOutcome, int[] evidenceIds, int[] evidenceOutcomes, int[] eliminationOrder) {
+        this.queryVar = queryVar;
+        this.queryOutcome = queryOutcome;
+        this.evidenceIds = evidenceIds;
+        this.evidenceOutcomes = evidenceOutcomes;
+        this.eliminationOrder = eliminationOrder;
+    }
+
+    public static Query parse(String query, BayesNet network) {
+        // Initialize necessary data structures
+        ArrayList<String> givenNames = new ArrayList<>();
+        ArrayList<String> givenValues = new ArrayList<>();
+        ArrayList<String> eliminationNames = new ArrayList<>();
+
+        // Split the query to extract relevant information
+        String[] queryParts = query.split("\\)\\s+|\\|");
+
+        // Extract query variable and value
+        String[] queryVariablePart = queryParts[0].substring(2).split("=");
+        String queryName = queryVariablePart[0].trim();
+        String queryValue = queryVariablePart[1].trim();
+
+        // Parse the given evidence, if any
+        if (queryParts.length > 1) {
+            String evidencePart = queryParts[1].split("\\s+")[0].replace(")", ""); // no ") " is left to split on when the order is omitted
+            String[] evidences = evidencePart.split(",");
+            for (String evidence : evidences) {
+                String[] evidenceSplit = evidence.split("=");
+                if (evidenceSplit.length == 2) {
+                    givenNames.add(evidenceSplit[0].trim());
+                    givenValues.add(evidenceSplit[1].trim());
+                }
+            }
+        }
+
+        // Parse variables to eliminate
+        if (queryParts.length > 2) {
+            String[] eliminationPart = queryParts[2].split("\\s+-\\s+");
+            if (eliminationPart.length >= 1) {
+                String[] toEliminate = eliminationPart[0].split("-");
+                for (String var : toEliminate) {
+                    eliminationNames.add(var.trim());
+                }
+            }
+        }
+
+        // Resolve the names once, from here on the engines work with variable ids and outcome indices
+        Variable queryVar = resolveVariable(network, queryName);
+        int queryOutcome = resolveOutcome(queryVar, queryValue);
+        int[] evidenceIds = new int[givenNames.size()];
+        int[] evidenceOutcomes = new int[givenNames.size()];
+        for (int i = 0; i < givenNames.size(); i++) {
+            Variable givenVar = resolveVariable(network, givenNames.get(i));
+            evidenceIds[i] = givenVar.id;
+            evidenceOutcomes[i] = resolveOutcome(givenVar, givenValues.get(i));
+        }
+        // variables of the order that aren't in the network are skipped
+        int[] eliminationOrder = eliminationNames.stream()
+                .map(network::getVariable)
+                .filter(var -> var != null)
+                .mapToInt(var -> var.id)
+                .toArray();
+
+        return new Query(queryVar, queryOutcome, evidenceIds, evidenceOutcomes, eliminationOrder);
+    }
+
+    static Variable resolveVariable(BayesNet network, String name) {
+        Variable var = network.getVariable(name);
+        if (var == null) {
+            throw new IllegalArgumentException("Variable not found: " + name);
+        }
+        return var;
+    }
+
+    static int resolveOutcome(Variable var, String outcome) {
+        int outcomeIndex = var.getOutcomeIndex(outcome);
+        if (outcomeIndex < 0) {
+            throw new IllegalArgumentException("Outcome " + outcome + " not found for variable " + var.name);
+        }
+        return outcomeIndex;
+    }
+
+    public int getQueryOutcome() {
+        return queryOutcome;
+    }
+
+    // in the order of the evidence of the query, like the evidence ids of the query prepared from it
+    public int[] getEvidenceOutcomes() {
+        return evidenceOutcomes.clone();
+    }
+
+    // Returns a key that is equal for queries with the same query value, evidence (in any order) and elimination order.
+    public String canonicalKey() {
+        return queryVar.id + "=" + queryOutcome + "|" + evidenceKey() + "|" + Arrays.toString(eliminationOrder);
+    }
+
+    // Returns the evidence as "id=outcome" pairs sorted by id, equal for queries that observe the same values.
+    public String evidenceKey() {
+        Integer[] positions = new Integer[evidenceIds.length];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = i;
+        }
+        Arrays.sort(positions, (a, b) -> Integer.compare(evidenceIds[a], evidenceIds[b]));
+        StringBuilder sb = new StringBuilder();
+        for (int i : positions) {
+            sb.append(evidenceIds[i]).append('=').append(evidenceOutcomes[i]).append(',');
+        }
+        return sb.toString();
+    }
+}
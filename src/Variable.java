@@ -1,19 +1,34 @@
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 // Variable class to represent a node in the Bayesian Network
 public class Variable {
     String name;
+    int id; // dense index of the variable in its network, assigned by BayesNet.initialize()
     int numberOfOutcomes;
 
     ArrayList<Variable> parents;
     ArrayList<Variable> children;
     ArrayList<String> outcomes;
+    private final Map<String, Integer> outcomeIndices; // outcome name -> its index in 'outcomes'
 
     public Variable(String name, ArrayList<String> outcomes) {
         this.name = name;
+        this.id = -1;
         this.outcomes = new ArrayList<>(outcomes);
         parents = new ArrayList<>();
         children = new ArrayList<>();
         numberOfOutcomes = outcomes.size();
+        outcomeIndices = new HashMap<>();
+        for (int i = 0; i < numberOfOutcomes; i++) {
+            outcomeIndices.put(this.outcomes.get(i), i);
+        }
+    }
+
+    // Returns the index of the outcome in 'outcomes', or -1 if the variable has no such outcome.
+    int getOutcomeIndex(String outcome) {
+        Integer index = outcomeIndices.get(outcome);
+        return index == null ? -1 : index;
     }
 }
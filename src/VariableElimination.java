@@ -2,209 +2,308 @@ import java.util.*;
 
 public class VariableElimination {
     private final BayesNet network;
-    int numOfMultiplies; // we use it as a data member, to prevent passing it as a parameter from one method to another.
+    // The settings every query reads once, replaced as a whole by the setters, so a query that runs while another
+    // thread changes them sees either the old settings or the new ones and never a mix.
+    private volatile Settings settings;
+    // told about every step of the inference, does nothing unless set.
+    private volatile InferenceListener listener = InferenceListener.NONE;
+    // answers of recent queries by Query.canonicalKey(), the least recently used one is evicted first. Every access,
+    // get included since it reorders the entries, holds the lock of the map.
+    private final Map<String, String> cache;
+    private int cacheHits;
+    private int cacheMisses;
+    // the tables of the intermediate factors are recycled through these arenas, one per query in flight
+    private final FactorArena.Pool arenas = new FactorArena.Pool(FactorArena.DEFAULT_CAPACITY);
+
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+    public static final double DEFAULT_SPARSE_DENSITY = 0.25;
+
+    private static final class Settings {
+        // when true, the fused join+eliminate step reports the operations a separate join and eliminate would have counted.
+        final boolean compatibleAccounting;
+        // plans the elimination order when the query doesn't give one, or when the given one may be overridden.
+        final EliminationOrder planner;
+        final boolean overrideOrder;
+        // factors with fewer non-zero rows than this fraction of their table are stored sparse, 0 keeps them all dense.
+        final double sparseDensity;
+
+        Settings(boolean compatibleAccounting, EliminationOrder planner, boolean overrideOrder, double sparseDensity) {
+            this.compatibleAccounting = compatibleAccounting;
+            this.planner = planner;
+            this.overrideOrder = overrideOrder;
+            this.sparseDensity = sparseDensity;
+        }
+    }
 
     public VariableElimination(BayesNet network) {
-        this.network = network;
+        this(network, DEFAULT_CACHE_SIZE);
     }
 
-    public String answer(String query) {
-        int numOfAdds = 0;
-        numOfMultiplies = 0;
-
-        // Initialize necessary data structures
-        ArrayList<String> givenNames = new ArrayList<>();
-        ArrayList<String> givenValues = new ArrayList<>();
-        ArrayList<String> varsToEliminate = new ArrayList<>();
-
-        // Split the query to extract relevant information
-        String[] queryParts = query.split("\\)\\s+|\\|");
-
-        // Extract query variable and value
-        String[] queryVariablePart = queryParts[0].substring(2).split("=");
-        String queryName = queryVariablePart[0].trim();
-        String queryValue = queryVariablePart[1].trim();
-
-        // Parse the given evidence, if any
-        if (queryParts.length > 1) {
-            String evidencePart = queryParts[1].split("\\s+")[0];
-            String[] evidences = evidencePart.split(",");
-            for (String evidence : evidences) {
-                String[] evidenceSplit = evidence.split("=");
-                if (evidenceSplit.length == 2) {
-                    givenNames.add(evidenceSplit[0].trim());
-                    givenValues.add(evidenceSplit[1].trim());
-                }
+    // cacheSize is the number of answers kept, 0 disables the cache.
+    public VariableElimination(BayesNet network, int cacheSize) {
+        this.network = network;
+        this.settings = new Settings(true, new EliminationOrder(network, EliminationOrder.Heuristic.MIN_FILL), false,
+                DEFAULT_SPARSE_DENSITY);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheSize;
             }
+        };
+    }
+
+    // the settings below change the answers, so they clear the cache.
+    public void setOrderHeuristic(EliminationOrder.Heuristic heuristic) {
+        EliminationOrder planner = new EliminationOrder(network, heuristic);
+        synchronized (cache) {
+            Settings old = settings;
+            replaceSettings(new Settings(old.compatibleAccounting, planner, old.overrideOrder, old.sparseDensity));
         }
+    }
 
-        // Parse variables to eliminate
-        if (queryParts.length > 2) {
-            String[] eliminationPart = queryParts[2].split("\\s+-\\s+");
-            if (eliminationPart.length >= 1) {
-                String[] toEliminate = eliminationPart[0].split("-");
-                for (String var : toEliminate) {
-                    varsToEliminate.add(var.trim());
-                }
-            }
+    // when true, the planner's order is used even if the query gives its own.
+    public void setOverrideOrder(boolean overrideOrder) {
+        synchronized (cache) {
+            Settings old = settings;
+            replaceSettings(new Settings(old.compatibleAccounting, old.planner, overrideOrder, old.sparseDensity));
         }
+    }
 
-        // Copy CPTs from the network for manipulation
-        ArrayList<Factor> factorVec = new ArrayList<>();
-        ArrayList<Variable> relevantVars = new ArrayList<>();
-        Map<String, Factor> cptMap = network.getCptMaps();
+    // Only changes the operations reported without compatible accounting, the probabilities are the same.
+    public void setSparseDensity(double sparseDensity) {
+        synchronized (cache) {
+            Settings old = settings;
+            replaceSettings(new Settings(old.compatibleAccounting, old.planner, old.overrideOrder, sparseDensity));
+        }
+    }
 
-        // add the ancestors of the query and evidence variables as they are relevant.
-        addRelevantVars(relevantVars, queryName);
-        for (int i = 0; i < givenNames.size(); i++) {
-            String givenName = givenNames.get(i);
-            addRelevantVars(relevantVars, givenName);
+    public void setCompatibleAccounting(boolean compatibleAccounting) {
+        synchronized (cache) {
+            Settings old = settings;
+            replaceSettings(new Settings(compatibleAccounting, old.planner, old.overrideOrder, old.sparseDensity));
         }
+    }
+
+    // Called with the lock of the cache held, so that no answer computed with the old settings is put afterwards.
+    private void replaceSettings(Settings newSettings) {
+        settings = newSettings;
+        cache.clear();
+    }
 
-        // drop independent variables with the query variable
-        dropIndependentVars(relevantVars, queryName, givenNames);
+    // Cached answers are returned without running the inference, so they produce no events.
+    public void setListener(InferenceListener listener) {
+        this.listener = listener;
+    }
 
-        for (Variable var : relevantVars) {
-            Factor tempFactor = new Factor(cptMap.get(var.name));
-            factorVec.add(tempFactor);
+    public int getCacheHits() {
+        synchronized (cache) {
+            return cacheHits;
         }
+    }
 
-        // go over evidences (e.g. M=T, J=T) and eliminate them from the CPTs
-        ArrayList<Factor> factorsToAdd = new ArrayList<>();
-        ArrayList<Factor> factorsToRemove = new ArrayList<>(); // factors to remove from the loop variable factorVec.
-        for (int i = 0; i < givenNames.size(); i++) {
-            String givenName = givenNames.get(i);
-            String givenValue = givenValues.get(i);
-            for (Factor factor : factorVec) {
-                if (factor.variables.stream().anyMatch(var -> var.name.equals(givenName))) {
-                    factorsToRemove.add(factor);
-                    Factor newFactor = factor.removeEvidence(givenName, givenValue);
-                    factorsToAdd.add(newFactor);
-                    System.out.println("After removing evidence " + givenName + "=" + givenValue + " from the factor:\n");
-                    System.out.println(newFactor + "\n");
-                }
-            }
+    public int getCacheMisses() {
+        synchronized (cache) {
+            return cacheMisses;
         }
-        factorVec.removeAll(factorsToRemove);
-        factorVec.addAll(factorsToAdd);
+    }
 
-        // Process each variable to eliminate
-        while (!varsToEliminate.isEmpty()) {
-            String varToEliminate = varsToEliminate.removeFirst();
-            // if the variable 'varToEliminate' is not in the relevant variables, skip it.
-            if (factorVec.stream().noneMatch(factor -> factor.variables.stream().anyMatch(var -> var.name.equals(varToEliminate)))) {
-                continue;
-            }
+    public String answer(String query) {
+        return answer(Query.parse(query, network));
+    }
 
-            // Collect relevant CPTs for joining
-            ArrayList<Factor> factorsToProceed = new ArrayList<>();
-            Iterator<Factor> iterator = factorVec.iterator();
-            while (iterator.hasNext()) {
-                Factor factor = iterator.next();
-                // Check if the variable to eliminate is either the key variable or in the given list of the CPT
-                if (factor.variables.stream().anyMatch(var -> var.name.equals(varToEliminate))) {
-                    factorsToProceed.add(factor);
-                    iterator.remove();
-                }
+    public String answer(Query query) {
+        String key = query.canonicalKey();
+        synchronized (cache) {
+            String result = cache.get(key);
+            if (result != null) {
+                cacheHits++;
+                return result;
             }
+            cacheMisses++;
+        }
+        // concurrent misses on the same key may both compute it, they produce the same answer
+        Settings settings = this.settings;
+        String result = compute(query, settings);
+        synchronized (cache) {
+            // an answer computed with settings replaced in the meantime is returned but not kept
+            if (settings == this.settings) {
+                cache.put(key, result);
+            }
+        }
+        return result;
+    }
 
-            sortFactors(factorsToProceed); // sort the factors from the smallest to the largest table size.
-            factorVec.removeAll(factorsToProceed); // remove the factors as we don't need them any longer
-
-            // Join the CPTs of the variable to eliminate
-            Factor afterJoin = Join(factorsToProceed);
-
-            // Eliminate the joined variable from the CPT
-            Factor afterEliminate = afterJoin.Eliminate(varToEliminate);
-            numOfAdds += afterEliminate.getTableSize(); // number of add operations performed during elimination.
+    // Compile the shape of a query, so that it can be answered for any evidence outcomes without parsing, pruning
+    // or planning again. An empty order is planned like in answer(). The plan keeps the settings of this instance
+    // at the time of the call. A prepared query computes dense tables only, so without compatible accounting, where
+    // sparse factors report fewer operations, it needs a sparse density of 0 to report the counts of answer().
+    public PreparedQuery prepare(int queryVarId, int[] evidenceIds, int[] order) {
+        Settings settings = this.settings;
+        if (!settings.compatibleAccounting && settings.sparseDensity > 0.0) {
+            throw new IllegalStateException("Without compatible accounting a prepared query needs a sparse density of 0");
+        }
+        return new PreparedQuery(network, queryVarId, evidenceIds, order, settings.planner, settings.overrideOrder,
+                settings.compatibleAccounting);
+    }
 
-            // Add the eliminated CPT back to the list
-            factorVec.add(afterEliminate);
+    // The shape of a parsed query, to be answered with its getEvidenceOutcomes() and getQueryOutcome().
+    public PreparedQuery prepare(Query query) {
+        return prepare(query.queryVar.id, query.evidenceIds, query.eliminationOrder);
+    }
 
-            factorsToProceed.clear();
+    public PreparedQuery prepare(String queryVar, List<String> evidenceVars, List<String> order) {
+        int[] evidenceIds = new int[evidenceVars.size()];
+        for (int i = 0; i < evidenceIds.length; i++) {
+            evidenceIds[i] = Query.resolveVariable(network, evidenceVars.get(i)).id;
         }
+        int[] orderIds = new int[order.size()];
+        for (int i = 0; i < orderIds.length; i++) {
+            orderIds[i] = Query.resolveVariable(network, order.get(i)).id;
+        }
+        return prepare(Query.resolveVariable(network, queryVar).id, evidenceIds, orderIds);
+    }
 
-        // join the remaining factors
-        Factor finalFactor = Join(factorVec);
+    // The tables of intermediate factors are taken from an arena and given back as soon as the next step has consumed
+    // them. A listener may keep the factors it is told about, so with a listener nothing is recycled.
+    private String compute(Query query, Settings settings) {
+        InferenceListener listener = this.listener;
+        if (listener != InferenceListener.NONE) {
+            return compute(query, settings, listener, null);
+        }
+        FactorArena arena = arenas.borrow();
+        try {
+            return compute(query, settings, listener, arena);
+        } finally {
+            arenas.giveBack(arena);
+        }
+    }
 
-        // if there are more variables in the final factor than the query variable, eliminate them.
-        if (finalFactor.variables.size() > 1) {
-            for (Variable var : finalFactor.variables) {
-                if (!var.name.equals(queryName)) {
-                    finalFactor = finalFactor.Eliminate(var.name);
-                    numOfAdds += finalFactor.getTableSize();
+    private String compute(Query query, Settings settings, InferenceListener listener, FactorArena arena) {
+        boolean compatibleAccounting = settings.compatibleAccounting;
+        double sparseDensity = settings.sparseDensity;
+        // without a listener the steps are neither timed nor copied for it
+        boolean listening = listener != InferenceListener.NONE;
+        // the counters are local, so that concurrent queries on the same instance don't mix them up
+        int numOfAdds = 0;
+        int numOfMultiplies = 0;
+
+        Variable queryVar = query.queryVar;
+        int[] evidenceIds = query.evidenceIds;
+        int[] evidenceOutcomes = query.evidenceOutcomes;
+        EliminationPlan plan = new EliminationPlan(network, queryVar.id, evidenceIds, query.eliminationOrder, settings.planner,
+                settings.overrideOrder);
+        if (plan.observedQueryPosition >= 0) {
+            double probability = evidenceOutcomes[plan.observedQueryPosition] == query.queryOutcome ? 1.0 : 0.0;
+            return String.format("%.5f,0,0", probability);
+        }
+        Factor[] factors = new Factor[plan.getNumberOfSlots()];
+
+        // The requisite CPTs are read-only views of the network's tables, nothing is copied until a step writes a
+        // new table. Every factor is reduced once by all the evidence it mentions.
+        for (int slot = 0; slot < plan.cptIds.length; slot++) {
+            Factor factor = network.getCpt(plan.cptIds[slot]).view();
+            for (int i = 0; i < evidenceIds.length; i++) {
+                if (factor.contains(evidenceIds[i])) {
+                    long start = listening ? System.nanoTime() : 0;
+                    Factor reduced = factor.removeEvidence(evidenceIds[i], evidenceOutcomes[i]);
+                    if (listening) {
+                        listener.onEvidenceReduced(factor, network.getVariable(evidenceIds[i]), evidenceOutcomes[i], reduced, System.nanoTime() - start);
+                    }
+                    factor = reduced;
                 }
             }
+            // deterministic CPTs and the ones reduced by evidence are often mostly zeros, those are stored sparse
+            factor.chooseStorage(sparseDensity);
+            factors[slot] = factor;
         }
 
-        System.out.println("Before normalize: the final factor is:\n");
-        System.out.println(finalFactor + "\n");
-        // normalize the final factor
-        numOfAdds += finalFactor.normalize();
-        System.out.println("After normalize: the final factor is:\n");
-        System.out.println(finalFactor + "\n");
-
-        String roundedProb = String.format("%.5f", finalFactor.getProbability(queryName, queryValue));
-        return String.format("%s,%d,%d",roundedProb, numOfAdds, numOfMultiplies);
-    }
-
-    private void dropIndependentVars(ArrayList<Variable> relevantVars, String queryName, ArrayList<String> evidenceNames) {
-        BayesBall bayesBall = new BayesBall(network);
-        ArrayList<Variable> varsToRemove = new ArrayList<>();
-        for (Variable var : relevantVars) {
-            if (bayesBall.isBayesBall(var.name, queryName, evidenceNames)) {
-                varsToRemove.add(var);
+        for (EliminationPlan.Step step : plan.steps) {
+            List<Factor> inputs = new ArrayList<>(step.inputs.length);
+            for (int input : step.inputs) {
+                inputs.add(factors[input]);
+            }
+            long start = listening ? System.nanoTime() : 0;
+            Factor output;
+            if (step.kind == EliminationPlan.JOIN_AND_ELIMINATE) {
+                // Join the CPTs of the variable to eliminate and sum it out in one pass
+                output = Factor.joinAndEliminate(inputs, step.eliminated.id, compatibleAccounting, arena);
+                long nanos = listening ? System.nanoTime() - start : 0;
+                double[] table = output.table;
+                output.chooseStorage(sparseDensity);
+                if (arena != null && output.isSparse() && table != null) {
+                    arena.release(table); // stored sparse from now on
+                }
+                numOfMultiplies += output.getNumOfMultiplies();
+                numOfAdds += output.getNumOfAdds(); // number of add operations performed during elimination.
+                if (listening) {
+                    listener.onJoinAndEliminate(inputs, step.eliminated, output, output.getNumOfAdds(), output.getNumOfMultiplies(), nanos);
+                }
+            } else if (step.kind == EliminationPlan.JOIN) {
+                // join the remaining factors
+                output = inputs.get(0).JoinFactor(inputs.get(1));
+                if (listening) {
+                    listener.onJoin(inputs.get(0), inputs.get(1), output, output.getNumOfMultiplies(), System.nanoTime() - start);
+                }
+                numOfMultiplies += output.getNumOfMultiplies();
+            } else {
+                // sum out the variables of the final factor other than the query variable
+                output = inputs.getFirst().Eliminate(step.eliminated.id);
+                if (listening) {
+                    listener.onEliminate(inputs.getFirst(), step.eliminated, output, output.getTableSize(), System.nanoTime() - start);
+                }
+                numOfAdds += output.getTableSize();
             }
+            factors[step.output] = output;
+            release(inputs, arena);
         }
-        relevantVars.removeAll(varsToRemove);
-    }
 
-    private void addRelevantVars(ArrayList<Variable> relevantVars, String queryName) {
-        if (relevantVars.stream().anyMatch(var -> var.name.equals(queryName))) {
-            return;
-        }
-        Optional<Variable> queryVar = network.getVariables().stream().filter(var -> var.name.equals(queryName)).findFirst();
-        if (queryVar.isPresent()) {
-            relevantVars.add(queryVar.get());
-            for (Variable parent : queryVar.get().parents) {
-                addRelevantVars(relevantVars, parent.name);
-            }
+        Factor finalFactor = factors[plan.resultSlot];
+        double probability;
+        if (listening) {
+            // normalize a copy of the final factor, so that the listener sees it before and after
+            long start = System.nanoTime();
+            Factor normalized = new Factor(finalFactor);
+            int normalizeAdds = normalized.normalize();
+            listener.onNormalize(finalFactor, normalized, normalizeAdds, System.nanoTime() - start);
+            numOfAdds += normalizeAdds;
+            probability = normalized.getProbability(queryVar.id, query.queryOutcome);
+        } else {
+            // a view or a sparse factor gets a dense table of its own first, the CPTs are never written
+            numOfAdds += finalFactor.normalize();
+            probability = finalFactor.getProbability(queryVar.id, query.queryOutcome);
+            finalFactor.releaseTable(arena);
         }
+
+        String roundedProb = String.format("%.5f", probability);
+        return String.format("%s,%d,%d",roundedProb, numOfAdds, numOfMultiplies);
     }
 
+    // Join the factors from left to right. The multiplies of all the joins are reported by the result's getNumOfMultiplies().
     public Factor Join(List<Factor> factors) {
         if (factors.isEmpty()) return new Factor();
 
         Factor newResult = new Factor(factors.getFirst());
+        int numOfMultiplies = 0;
 
         for (int i = 1; i < factors.size(); i++) {
             Factor factor = factors.get(i);
 
-            System.out.println("Joining factors:\n");
-            System.out.println(newResult);
-            System.out.println("and\n");
-            System.out.println(factor);
-            newResult = newResult.JoinFactor(factor);
+            long start = System.nanoTime();
+            Factor joined = newResult.JoinFactor(factor);
+            listener.onJoin(newResult, factor, joined, joined.getNumOfMultiplies(), System.nanoTime() - start);
+            newResult = joined;
             numOfMultiplies += newResult.getNumOfMultiplies();
-            System.out.println("The join result is:\n");
-            System.out.println(newResult + "\n");
         }
 
+        newResult.setNumOfMultiplies(numOfMultiplies);
         return newResult;
     }
 
-    // function to sort factors by their table size: from the smallest to the largest
-    private void sortFactors(ArrayList<Factor> factors) {
-        factors.sort(new Comparator<Factor>() {
-            @Override
-            public int compare(Factor f1, Factor f2) {
-                int result = Integer.compare(f1.getTableSize(), f2.getTableSize());
-                if (result == 0) {
-                    return Integer.compare(f1.getTotalVarsAsciiCodes(), f2.getTotalVarsAsciiCodes());
-                } else {
-                    return result;
-                }
+    private static void release(List<Factor> factors, FactorArena arena) {
+        if (arena != null) {
+            for (Factor factor : factors) {
+                factor.releaseTable(arena);
             }
-        });
+        }
     }
 }
@@ -0,0 +1,217 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// The table kernels of Factor on the Vector API. A run is a block of consecutive rows of the result, over its last
+// variables, that every operand reads either contiguously or at a single row (a smaller factor broadcast across
+// the run). Runs of at least LANES rows are computed a vector of rows at a time, each lane doing the operations of
+// the scalar kernel for its row in the same order, so the tables are identical to the scalar ones. The rows outside
+// whole runs go to the scalar kernels.
+// Factor only calls these when it is vectorized, which needs java --add-modules jdk.incubator.vector.
+final class VectorKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    static final int LANES = SPECIES.length();
+    // normalize() sums smaller tables in order, like the scalar kernel
+    static final int MIN_NORMALIZE = 4 * LANES;
+
+    private VectorKernels() {
+    }
+
+    // The number of rows at the end of a result table with the given cardinalities over which an operand with the
+    // given strides (over the variables of the result) reads its table contiguously (innermost stride 1) or stays on
+    // the same row (innermost stride 0).
+    static int runLength(int[] strides, int[] cardinalities) {
+        int numOfVars = cardinalities.length;
+        if (numOfVars == 0 || strides[numOfVars - 1] > 1) {
+            return 1;
+        }
+        int innermost = strides[numOfVars - 1];
+        int length = 1;
+        for (int k = numOfVars - 1; k >= 0 && strides[k] == innermost * length; k--) {
+            length *= cardinalities[k];
+        }
+        return length;
+    }
+
+    // Factor.joinRows() over runs of 'run' rows.
+    static void joinRows(double[] table1, int offset1, int[] strides1, double[] table2, int offset2, int[] strides2,
+                         int[] cardinalities, double[] result, int from, int to, int[] digits, int run) {
+        int first = Math.min(to, (from + run - 1) / run * run);
+        int last = Math.max(first, to / run * run);
+        if (from < first) {
+            Factor.scalarJoinRows(table1, offset1, strides1, table2, offset2, strides2, cardinalities, result, from, first, digits);
+        }
+        if (first < last) {
+            int outer = outerVariables(cardinalities, run);
+            int inner1 = strides1[cardinalities.length - 1];
+            int inner2 = strides2[cardinalities.length - 1];
+            Factor.outcomesAt(first, cardinalities, digits);
+            int row1 = offset1;
+            int row2 = offset2;
+            for (int k = 0; k < outer; k++) {
+                row1 += digits[k] * strides1[k];
+                row2 += digits[k] * strides2[k];
+            }
+
+            for (int row = first; row < last; row += run) {
+                int i = 0;
+                for (; i <= run - LANES; i += LANES) {
+                    load(table1, row1, inner1, i).mul(load(table2, row2, inner2, i)).intoArray(result, row + i);
+                }
+                for (; i < run; i++) {
+                    result[row + i] = table1[row1 + i * inner1] * table2[row2 + i * inner2];
+                }
+
+                // advance the outer variables like an odometer
+                for (int k = outer - 1; k >= 0; k--) {
+                    if (++digits[k] < cardinalities[k]) {
+                        row1 += strides1[k];
+                        row2 += strides2[k];
+                        break;
+                    }
+                    digits[k] = 0;
+                    row1 -= strides1[k] * (cardinalities[k] - 1);
+                    row2 -= strides2[k] * (cardinalities[k] - 1);
+                }
+            }
+        }
+        if (last < to) {
+            Factor.scalarJoinRows(table1, offset1, strides1, table2, offset2, strides2, cardinalities, result, last, to, digits);
+        }
+    }
+
+    // Factor.joinAndEliminateRows() over runs of 'run' rows.
+    static void joinAndEliminateRows(double[][] operands, int[] offsets, int[][] operandStrides, int[] eliminatedStrides,
+                                     int eliminatedCardinality, int[] cardinalities, double[] result, int from, int to,
+                                     int[] digits, int[] baseRows, int run) {
+        int first = Math.min(to, (from + run - 1) / run * run);
+        int last = Math.max(first, to / run * run);
+        if (from < first) {
+            Factor.scalarJoinAndEliminateRows(operands, offsets, operandStrides, eliminatedStrides,
+                    eliminatedCardinality, cardinalities, result, from, first, digits, baseRows);
+        }
+        if (first < last) {
+            int outer = outerVariables(cardinalities, run);
+            int innermost = cardinalities.length - 1;
+            Factor.outcomesAt(first, cardinalities, digits);
+            System.arraycopy(offsets, 0, baseRows, 0, operands.length);
+            for (int k = 0; k < outer; k++) {
+                for (int j = 0; j < operands.length; j++) {
+                    baseRows[j] += digits[k] * operandStrides[j][k];
+                }
+            }
+
+            for (int row = first; row < last; row += run) {
+                int i = 0;
+                for (; i <= run - LANES; i += LANES) {
+                    DoubleVector sum = DoubleVector.zero(SPECIES);
+                    for (int outcome = 0; outcome < eliminatedCardinality; outcome++) {
+                        DoubleVector product = load(operands[0], baseRows[0] + outcome * eliminatedStrides[0],
+                                operandStrides[0][innermost], i);
+                        for (int j = 1; j < operands.length; j++) {
+                            product = product.mul(load(operands[j], baseRows[j] + outcome * eliminatedStrides[j],
+                                    operandStrides[j][innermost], i));
+                        }
+                        sum = sum.add(product);
+                    }
+                    sum.intoArray(result, row + i);
+                }
+                for (; i < run; i++) {
+                    double sum = 0.0;
+                    for (int outcome = 0; outcome < eliminatedCardinality; outcome++) {
+                        double product = operands[0][baseRows[0] + outcome * eliminatedStrides[0] + i * operandStrides[0][innermost]];
+                        for (int j = 1; j < operands.length; j++) {
+                            product *= operands[j][baseRows[j] + outcome * eliminatedStrides[j] + i * operandStrides[j][innermost]];
+                        }
+                        sum += product;
+                    }
+                    result[row + i] = sum;
+                }
+
+                // advance the outer variables like an odometer
+                for (int k = outer - 1; k >= 0; k--) {
+                    if (++digits[k] < cardinalities[k]) {
+                        for (int j = 0; j < operands.length; j++) {
+                            baseRows[j] += operandStrides[j][k];
+                        }
+                        break;
+                    }
+                    digits[k] = 0;
+                    for (int j = 0; j < operands.length; j++) {
+                        baseRows[j] -= operandStrides[j][k] * (cardinalities[k] - 1);
+                    }
+                }
+            }
+        }
+        if (last < to) {
+            Factor.scalarJoinAndEliminateRows(operands, offsets, operandStrides, eliminatedStrides,
+                    eliminatedCardinality, cardinalities, result, last, to, digits, baseRows);
+        }
+    }
+
+    // Factor.eliminateRows() for a stride of at least LANES: the rows of a block of 'stride' consecutive result rows
+    // are consecutive in every outcome of the eliminated variable, so they are summed a vector at a time.
+    static void eliminateRows(double[] table, int stride, int cardinality, double[] result, int from, int to) {
+        int first = Math.min(to, (from + stride - 1) / stride * stride);
+        int last = Math.max(first, to / stride * stride);
+        if (from < first) {
+            Factor.scalarEliminateRows(table, stride, cardinality, result, from, first);
+        }
+        int block = stride * cardinality;
+        for (int reducedRow = first; reducedRow < last; reducedRow += stride) {
+            int firstRow = (reducedRow / stride) * block;
+            int i = 0;
+            for (; i <= stride - LANES; i += LANES) {
+                DoubleVector sum = DoubleVector.zero(SPECIES);
+                for (int outcome = 0; outcome < cardinality; outcome++) {
+                    sum = sum.add(DoubleVector.fromArray(SPECIES, table, firstRow + outcome * stride + i));
+                }
+                sum.intoArray(result, reducedRow + i);
+            }
+            if (i < stride) {
+                Factor.scalarEliminateRows(table, stride, cardinality, result, reducedRow + i, reducedRow + stride);
+            }
+        }
+        if (last < to) {
+            Factor.scalarEliminateRows(table, stride, cardinality, result, last, to);
+        }
+    }
+
+    // Factor.normalize(): the total is the sum of LANES partial sums, each over every LANES-th row, so it may differ
+    // from the scalar total in the last bits. The division is the scalar one.
+    static void normalize(double[] table) {
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i <= table.length - LANES; i += LANES) {
+            sums = sums.add(DoubleVector.fromArray(SPECIES, table, i));
+        }
+        double total = sums.reduceLanes(VectorOperators.ADD);
+        for (; i < table.length; i++) {
+            total += table[i];
+        }
+
+        i = 0;
+        for (; i <= table.length - LANES; i += LANES) {
+            DoubleVector.fromArray(SPECIES, table, i).div(total).intoArray(table, i);
+        }
+        for (; i < table.length; i++) {
+            table[i] /= total;
+        }
+    }
+
+    // LANES rows of an operand from 'row' + i: consecutive ones for an innermost stride of 1, one row for 0.
+    private static DoubleVector load(double[] table, int row, int innermostStride, int i) {
+        return innermostStride == 0 ? DoubleVector.broadcast(SPECIES, table[row])
+                : DoubleVector.fromArray(SPECIES, table, row + i);
+    }
+
+    // The number of variables left of the ones a run covers.
+    private static int outerVariables(int[] cardinalities, int run) {
+        int outer = cardinalities.length;
+        int size = 1;
+        while (size < run) {
+            size *= cardinalities[--outer];
+        }
+        return outer;
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.List;
+
+// Prints every step with its tables to stdout, as the engine used to do unconditionally.
+public class VerboseInferenceListener implements InferenceListener {
+    @Override
+    public void onEvidenceReduced(Factor factor, Variable var, int outcome, Factor result, long nanos) {
+        System.out.println("After removing evidence " + var.name + "=" + var.outcomes.get(outcome) + " from the factor:\n");
+        System.out.println(result + "\n");
+    }
+
+    @Override
+    public void onJoin(Factor left, Factor right, Factor result, int multiplies, long nanos) {
+        System.out.println("Joining factors:\n");
+        System.out.println(left);
+        System.out.println("and\n");
+        System.out.println(right);
+        System.out.println("The join result is:\n");
+        System.out.println(result + "\n");
+    }
+
+    @Override
+    public void onJoinAndEliminate(List<Factor> factors, Variable var, Factor result, int adds, int multiplies, long nanos) {
+        System.out.println("Joining and eliminating variable " + var.name + " from the factors:\n");
+        for (Factor factor : factors) {
+            System.out.println(factor);
+        }
+        System.out.println("The elimination result is:\n");
+        System.out.println(result + "\n");
+    }
+
+    @Override
+    public void onEliminate(Factor factor, Variable var, Factor result, int adds, long nanos) {
+        System.out.println("Eliminate variable " + var.name + " from the factor:\n");
+        System.out.println(factor);
+        System.out.println("The elimination result is:\n");
+        System.out.println(result + "\n");
+    }
+
+    @Override
+    public void onNormalize(Factor factor, Factor result, int adds, long nanos) {
+        System.out.println("Before normalize: the final factor is:\n");
+        System.out.println(factor + "\n");
+        System.out.println("After normalize: the final factor is:\n");
+        System.out.println(result + "\n");
+    }
+}
@@ -0,0 +1,169 @@
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Streaming (StAX) loader for XMLBIF networks: reads the file in one forward pass without building a DOM.
+// The numbers of every TABLE are parsed straight into a double[], and the FOR/GIVEN names are resolved
+// through the name map of the network, so loading is linear in the size of the file. Every CPT is built
+// as soon as its DEFINITION closes, the usual XMLBIF layout declares all the variables before them.
+public class XmlNetworkLoader {
+    // A DEFINITION as read from the file. One that mentions a variable not declared yet is kept until
+    // the whole file was read, so a definition may come before the variables it mentions.
+    private static class Definition {
+        String forVar;
+        final List<String> givenVarNames = new ArrayList<>();
+        double[] tableValues = new double[0];
+    }
+
+    public static BayesNet load(String xmlFilePath) throws IOException, XMLStreamException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(xmlFilePath))) {
+            return load(in);
+        }
+    }
+
+    public static BayesNet load(InputStream in) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+
+        BayesNet network = new BayesNet();
+        List<Definition> pending = new ArrayList<>();
+        String variableName = null;
+        ArrayList<String> outcomes = null;
+        Definition definition = null;
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (reader.getLocalName().equals("VARIABLE") && outcomes != null) {
+                        network.addVariable(new Variable(variableName, outcomes));
+                        outcomes = null;
+                    } else if (reader.getLocalName().equals("DEFINITION") && definition != null) {
+                        if (isResolvable(network, definition)) {
+                            network.cpts.put(definition.forVar, buildCpt(network, definition));
+                        } else {
+                            pending.add(definition);
+                        }
+                        definition = null;
+                    }
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                switch (reader.getLocalName()) {
+                    case "VARIABLE" -> {
+                        variableName = null;
+                        outcomes = new ArrayList<>();
+                    }
+                    case "NAME" -> {
+                        String text = reader.getElementText().trim();
+                        if (outcomes != null) { // the network has a NAME too
+                            variableName = text;
+                        }
+                    }
+                    case "OUTCOME" -> {
+                        String text = reader.getElementText().trim();
+                        if (outcomes != null) {
+                            outcomes.add(text);
+                        }
+                    }
+                    case "DEFINITION" -> definition = new Definition();
+                    case "FOR" -> {
+                        String text = reader.getElementText().trim();
+                        if (definition != null) {
+                            definition.forVar = text;
+                        }
+                    }
+                    case "GIVEN" -> {
+                        String text = reader.getElementText().trim();
+                        if (definition != null) {
+                            definition.givenVarNames.add(text);
+                        }
+                    }
+                    case "TABLE" -> {
+                        String text = reader.getElementText();
+                        if (definition != null) {
+                            definition.tableValues = parseTable(text);
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        for (Definition def : pending) {
+            network.cpts.put(def.forVar, buildCpt(network, def));
+        }
+        return network;
+    }
+
+    private static boolean isResolvable(BayesNet network, Definition definition) {
+        if (network.getVariable(definition.forVar) == null) {
+            return false;
+        }
+        for (String varName : definition.givenVarNames) {
+            if (network.getVariable(varName) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Factor buildCpt(BayesNet network, Definition definition) {
+        List<Variable> factorVars = new ArrayList<>();
+        for (String varName : definition.givenVarNames) {
+            factorVars.add(resolveVariable(network, varName));
+        }
+        factorVars.add(resolveVariable(network, definition.forVar));
+
+        Factor factor = new Factor(factorVars);
+        factor.given = definition.givenVarNames;
+        factor.populateTable(definition.tableValues);
+        return factor;
+    }
+
+    private static Variable resolveVariable(BayesNet network, String name) {
+        Variable var = network.getVariable(name);
+        if (var == null) {
+            throw new IllegalArgumentException("Variable not found: " + name);
+        }
+        return var;
+    }
+
+    // Parse the whitespace separated numbers of a TABLE element into a double[].
+    static double[] parseTable(String text) {
+        double[] values = new double[16];
+        int count = 0;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && !Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            if (start < i) {
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, 2 * count);
+                }
+                values[count++] = Double.parseDouble(text.substring(start, i));
+            }
+        }
+        return Arrays.copyOf(values, count);
+    }
+}
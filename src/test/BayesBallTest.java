@@ -0,0 +1,126 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Bayes-Ball against the full joint distribution. The generated CPTs are random and positive, so two variables
+// are independent given the evidence only when they are d-separated, and a CPT changes the posterior of the query
+// only when it is requisite.
+class BayesBallTest {
+    private static final double CHANGED = 1e-9;
+
+    @Test
+    void requisiteVariablesAreTheCptsThatChangeThePosterior() {
+        for (long seed = 1; seed <= 6; seed++) {
+            BayesNet network = NetworkGenerator.generate(11, 3, 2, 4, seed);
+            BayesBall bayesBall = new BayesBall(network);
+            BruteForce bruteForce = new BruteForce(network);
+            SplittableRandom random = new SplittableRandom(seed);
+            for (int q = 0; q < 8; q++) {
+                int queryId = random.nextInt(network.getNumberOfVariables());
+                int[] evidenceIds = evidence(network, queryId, 1 + random.nextInt(3), random);
+                int[] evidenceOutcomes = outcomes(evidenceIds.length, random);
+                double[] posterior = bruteForce.posterior(queryId, evidenceIds, evidenceOutcomes);
+
+                BitSet requisite = bayesBall.requisiteVariables(queryId, toBitSet(evidenceIds));
+                for (int id = 0; id < network.getNumberOfVariables(); id++) {
+                    double[] original = bruteForce.getTable(id);
+                    bruteForce.setTable(id, perturbed(original, random));
+                    double[] changed = bruteForce.posterior(queryId, evidenceIds, evidenceOutcomes);
+                    bruteForce.setTable(id, original);
+                    assertEquals(differs(posterior, changed), requisite.get(id),
+                            "CPT of " + id + " for query " + queryId + " given " + toBitSet(evidenceIds));
+                }
+            }
+        }
+    }
+
+    @Test
+    void dSeparationIsIndependenceInTheJointDistribution() {
+        for (long seed = 1; seed <= 6; seed++) {
+            BayesNet network = NetworkGenerator.generate(10, 3, 2, 4, seed);
+            BayesBall bayesBall = new BayesBall(network);
+            BruteForce bruteForce = new BruteForce(network);
+            SplittableRandom random = new SplittableRandom(seed);
+            for (int q = 0; q < 20; q++) {
+                int startId = random.nextInt(network.getNumberOfVariables());
+                int endId = random.nextInt(network.getNumberOfVariables());
+                if (startId == endId) {
+                    continue;
+                }
+                int[] evidenceIds = evidence(network, startId, random.nextInt(3), random, endId);
+                int[] evidenceOutcomes = outcomes(evidenceIds.length, random);
+
+                // P(start | evidence, end = b) is the same for every b exactly when they are independent
+                int[] withEndIds = append(evidenceIds, endId);
+                double[] givenFirst = bruteForce.posterior(startId, withEndIds, append(evidenceOutcomes, 0));
+                double[] givenSecond = bruteForce.posterior(startId, withEndIds, append(evidenceOutcomes, 1));
+                assertEquals(!differs(givenFirst, givenSecond), bayesBall.isBayesBall(startId, endId, toBitSet(evidenceIds)),
+                        startId + " and " + endId + " given " + toBitSet(evidenceIds));
+            }
+        }
+    }
+
+    // 'count' distinct variables other than the excluded ones
+    private static int[] evidence(BayesNet network, int excluded, int count, SplittableRandom random, int... alsoExcluded) {
+        BitSet chosen = new BitSet();
+        chosen.set(excluded);
+        for (int id : alsoExcluded) {
+            chosen.set(id);
+        }
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            int id;
+            do {
+                id = random.nextInt(network.getNumberOfVariables());
+            } while (chosen.get(id));
+            chosen.set(id);
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    private static int[] outcomes(int count, SplittableRandom random) {
+        int[] outcomes = new int[count];
+        for (int i = 0; i < count; i++) {
+            outcomes[i] = random.nextInt(2);
+        }
+        return outcomes;
+    }
+
+    // another positive binary CPT table
+    private static double[] perturbed(double[] table, SplittableRandom random) {
+        double[] result = new double[table.length];
+        for (int block = 0; block < table.length; block += 2) {
+            result[block] = 0.05 + 0.9 * random.nextDouble();
+            result[block + 1] = 1.0 - result[block];
+        }
+        return result;
+    }
+
+    private static boolean differs(double[] p1, double[] p2) {
+        for (int outcome = 0; outcome < p1.length; outcome++) {
+            if (Math.abs(p1[outcome] - p2[outcome]) > CHANGED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static BitSet toBitSet(int[] ids) {
+        BitSet bits = new BitSet();
+        for (int id : ids) {
+            bits.set(id);
+        }
+        return bits;
+    }
+
+    private static int[] append(int[] values, int value) {
+        int[] result = Arrays.copyOf(values, values.length + 1);
+        result[values.length] = value;
+        return result;
+    }
+}
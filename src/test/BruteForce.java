@@ -0,0 +1,79 @@
+// Exact posteriors by summing the full joint distribution, independent of every engine. Only for small networks:
+// the joint has a row per assignment of all the variables.
+final class BruteForce {
+    private final BayesNet network;
+    private final double[][] tables; // per variable, the dense table of its CPT, which the tests may replace
+
+    BruteForce(BayesNet network) {
+        this.network = network;
+        this.tables = new double[network.getNumberOfVariables()][];
+        for (int id = 0; id < tables.length; id++) {
+            tables[id] = network.getCpt(id).table.clone();
+        }
+    }
+
+    void setTable(int varId, double[] table) {
+        tables[varId] = table;
+    }
+
+    double[] getTable(int varId) {
+        return tables[varId];
+    }
+
+    // P(queryVar | evidence), or null if the evidence has probability 0.
+    double[] posterior(int queryVarId, int[] evidenceIds, int[] evidenceOutcomes) {
+        int numOfVars = network.getNumberOfVariables();
+        int[] cardinalities = new int[numOfVars];
+        long numOfRows = 1;
+        for (int id = 0; id < numOfVars; id++) {
+            cardinalities[id] = network.getVariable(id).numberOfOutcomes;
+            numOfRows *= cardinalities[id];
+        }
+        double[] result = new double[cardinalities[queryVarId]];
+        int[] assignment = new int[numOfVars];
+        for (long row = 0; row < numOfRows; row++) {
+            long rest = row;
+            for (int id = numOfVars - 1; id >= 0; id--) {
+                assignment[id] = (int) (rest % cardinalities[id]);
+                rest /= cardinalities[id];
+            }
+            if (contradicts(assignment, evidenceIds, evidenceOutcomes)) {
+                continue;
+            }
+            double probability = 1.0;
+            for (int id = 0; id < numOfVars; id++) {
+                probability *= tables[id][cptRow(network.getCpt(id), assignment)];
+            }
+            result[assignment[queryVarId]] += probability;
+        }
+        double total = 0.0;
+        for (double value : result) {
+            total += value;
+        }
+        if (total == 0.0) {
+            return null;
+        }
+        for (int outcome = 0; outcome < result.length; outcome++) {
+            result[outcome] /= total;
+        }
+        return result;
+    }
+
+    private static boolean contradicts(int[] assignment, int[] evidenceIds, int[] evidenceOutcomes) {
+        for (int i = 0; i < evidenceIds.length; i++) {
+            if (assignment[evidenceIds[i]] != evidenceOutcomes[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the row of a CPT table: row-major over its variables, the last one changes fastest
+    private static int cptRow(Factor cpt, int[] assignment) {
+        int row = 0;
+        for (Variable var : cpt.variables) {
+            row = row * var.numberOfOutcomes + assignment[var.id];
+        }
+        return row;
+    }
+}
@@ -0,0 +1,138 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Every exact engine against variable elimination, and variable elimination against the full joint, on generated
+// networks. The probabilities are compared as printed, to 5 decimals.
+class EngineCrossCheckTest {
+    private static final double PRINTED = 1e-5;
+
+    @Test
+    void variableEliminationMatchesTheJointDistribution() {
+        for (long seed = 1; seed <= 4; seed++) {
+            BayesNet network = TestNetworks.withDeterministicRows(12, 3, 0.2, seed);
+            BruteForce bruteForce = new BruteForce(network);
+            VariableElimination variableElimination = new VariableElimination(network, 0);
+            for (Query query : TestNetworks.sampledQueries(network, 30, 3, seed)) {
+                double[] exact = bruteForce.posterior(query.queryVar.id, query.evidenceIds, query.evidenceOutcomes);
+                double probability = TestNetworks.probability(variableElimination.answer(query));
+                assertEquals(exact[query.queryOutcome], probability, PRINTED, query.canonicalKey());
+            }
+        }
+    }
+
+    @Test
+    void exactEnginesAgreeWithVariableElimination() {
+        for (long seed = 1; seed <= 3; seed++) {
+            BayesNet network = NetworkGenerator.generate(40, 3, 2, 4, seed);
+            VariableElimination variableElimination = new VariableElimination(network, 0);
+            JunctionTree junctionTree = new JunctionTree(network);
+            InferenceSession session = new InferenceSession(network);
+            ArithmeticCircuit circuit = ArithmeticCircuit.compile(network);
+            for (Query query : TestNetworks.sampledQueries(network, 40, 3, seed)) {
+                double expected = TestNetworks.probability(variableElimination.answer(query));
+                String key = query.canonicalKey();
+                assertEquals(expected, TestNetworks.probability(junctionTree.answer(query)), PRINTED, key);
+                assertEquals(expected, TestNetworks.probability(session.answer(query)), PRINTED, key);
+                assertEquals(expected, TestNetworks.probability(circuit.answer(query)), PRINTED, key);
+                PreparedQuery prepared = variableElimination.prepare(query);
+                assertEquals(expected, prepared.probability(query.getEvidenceOutcomes(), query.getQueryOutcome()), PRINTED, key);
+            }
+        }
+    }
+
+    @Test
+    void preparedQueryReportsTheOperationsOfVariableElimination() {
+        BayesNet network = TestNetworks.withDeterministicRows(40, 4, 0.3, 5);
+        List<Query> queries = TestNetworks.sampledQueries(network, 40, 3, 5);
+        for (double sparseDensity : new double[]{0.0, 0.25, 0.9}) {
+            VariableElimination variableElimination = new VariableElimination(network, 0);
+            variableElimination.setSparseDensity(sparseDensity);
+            assertPreparedMatches(variableElimination, queries);
+        }
+        VariableElimination incompatible = new VariableElimination(network, 0);
+        incompatible.setCompatibleAccounting(false);
+        incompatible.setSparseDensity(0.0);
+        assertPreparedMatches(incompatible, queries);
+    }
+
+    private static void assertPreparedMatches(VariableElimination variableElimination, List<Query> queries) {
+        for (Query query : queries) {
+            String expected = variableElimination.answer(query);
+            String answer = variableElimination.prepare(query).answer(query.getEvidenceOutcomes(), query.getQueryOutcome());
+            assertEquals(TestNetworks.probability(expected), TestNetworks.probability(answer), PRINTED, query.canonicalKey());
+            assertEquals(TestNetworks.operations(expected), TestNetworks.operations(answer), query.canonicalKey());
+        }
+    }
+
+    @Test
+    void preparedQueryNeedsDenseFactorsWithoutCompatibleAccounting() {
+        VariableElimination variableElimination = new VariableElimination(NetworkGenerator.generate(10, 2, 2, 3, 1), 0);
+        variableElimination.setCompatibleAccounting(false);
+        assertThrows(IllegalStateException.class, () -> variableElimination.prepare(0, new int[]{1}, new int[0]));
+    }
+
+    @Test
+    void junctionTreeCalibratesOncePerEvidenceSet() {
+        BayesNet network = NetworkGenerator.generate(30, 3, 2, 4, 3);
+        for (Query query : TestNetworks.sampledQueries(network, 10, 2, 3)) {
+            JunctionTree junctionTree = new JunctionTree(network);
+            String first = junctionTree.answer(query);
+            assertEquals("0,0", TestNetworks.operations(junctionTree.answer(query)), "the same query again");
+
+            // another variable with the same evidence only pays for its marginal
+            int otherId = (query.queryVar.id + 1) % network.getNumberOfVariables();
+            Query other = new Query(network.getVariable(otherId), 0, query.evidenceIds, query.evidenceOutcomes, new int[0]);
+            if (!observes(query, otherId)) {
+                assertTrue(adds(junctionTree.answer(other)) < adds(first), query.canonicalKey());
+            }
+        }
+    }
+
+    @Test
+    void sessionReportsNothingWhenTheEvidenceDidNotChange() {
+        BayesNet network = NetworkGenerator.generate(30, 3, 2, 4, 4);
+        InferenceSession session = new InferenceSession(network);
+        for (Query query : TestNetworks.sampledQueries(network, 10, 2, 4)) {
+            String first = session.answer(query);
+            String again = session.answer(query);
+            assertEquals(TestNetworks.probability(first), TestNetworks.probability(again));
+            assertEquals("0,0", TestNetworks.operations(again), query.canonicalKey());
+        }
+    }
+
+    @Test
+    void observedQueryVariableHasAPointPosterior() {
+        BayesNet network = NetworkGenerator.generate(20, 3, 2, 4, 6);
+        VariableElimination variableElimination = new VariableElimination(network, 0);
+        JunctionTree junctionTree = new JunctionTree(network);
+        InferenceSession session = new InferenceSession(network);
+        ArithmeticCircuit circuit = ArithmeticCircuit.compile(network);
+        int[] evidenceIds = {3, 7, 12};
+        int[] evidenceOutcomes = {1, 0, 1};
+        for (int outcome = 0; outcome < 2; outcome++) {
+            Query query = new Query(network.getVariable(7), outcome, evidenceIds, evidenceOutcomes, new int[0]);
+            String expected = outcome == 0 ? "1.00000,0,0" : "0.00000,0,0";
+            assertEquals(expected, variableElimination.answer(query));
+            assertEquals(expected, junctionTree.answer(query));
+            assertEquals(expected, variableElimination.prepare(query).answer(evidenceOutcomes, outcome));
+            assertEquals(outcome == 0 ? 1.0 : 0.0, TestNetworks.probability(session.answer(query)));
+            assertEquals(outcome == 0 ? 1.0 : 0.0, TestNetworks.probability(circuit.answer(query)));
+        }
+    }
+
+    private static boolean observes(Query query, int varId) {
+        for (int evidenceId : query.evidenceIds) {
+            if (evidenceId == varId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int adds(String answer) {
+        return Integer.parseInt(answer.split(",")[1]);
+    }
+}
@@ -0,0 +1,151 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Sparse and dense tables, views and the vector and scalar kernels are different ways to compute the same factors.
+class FactorStorageTest {
+    private static final BayesNet NETWORK = NetworkGenerator.generate(24, 3, 2, 4, 9);
+
+    // a factor over 'numOfVars' variables from 'fromId' on, with about 'zeros' of its rows 0
+    private static Factor factor(int fromId, int numOfVars, double zeros, long seed) {
+        Factor factor = NetworkGenerator.randomFactor(NETWORK, fromId, numOfVars, seed);
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int row = 0; row < factor.table.length; row++) {
+            if (random.nextDouble() < zeros) {
+                factor.table[row] = 0.0;
+            }
+        }
+        return factor;
+    }
+
+    private static Factor sparseCopy(Factor factor) {
+        Factor copy = new Factor(factor);
+        copy.chooseStorage(1.0);
+        assertTrue(copy.isSparse());
+        return copy;
+    }
+
+    private static double[] values(Factor factor) {
+        Factor copy = new Factor(factor);
+        copy.ensureDense();
+        return copy.table;
+    }
+
+    @Test
+    void sparseFactorsComputeTheDenseTables() {
+        Factor f1 = factor(0, 8, 0.8, 1);
+        Factor f2 = factor(4, 8, 0.8, 2);
+        Factor s1 = sparseCopy(f1);
+        Factor s2 = sparseCopy(f2);
+
+        assertArrayEquals(values(f1.JoinFactor(f2)), values(s1.JoinFactor(s2)));
+        assertArrayEquals(values(f1.JoinFactor(f2)), values(f1.JoinFactor(s2)));
+        assertArrayEquals(values(f1.Eliminate(5)), values(s1.Eliminate(5)));
+        assertArrayEquals(values(f1.removeEvidence(6, 1)), values(s1.removeEvidence(6, 1)));
+        for (int varId = 4; varId < 8; varId++) {
+            Factor dense = Factor.joinAndEliminate(List.of(f1, f2), varId, true);
+            Factor sparse = Factor.joinAndEliminate(List.of(s1, s2), varId, true);
+            assertArrayEquals(values(dense), values(sparse), 1e-15);
+            // with compatible accounting the operations don't depend on the storage
+            assertEquals(dense.getNumOfAdds(), sparse.getNumOfAdds());
+            assertEquals(dense.getNumOfMultiplies(), sparse.getNumOfMultiplies());
+        }
+    }
+
+    @Test
+    void chooseStorageKeepsTheValues() {
+        Factor factor = factor(0, 10, 0.9, 3);
+        double[] expected = factor.table.clone();
+        factor.chooseStorage(0.25);
+        assertTrue(factor.isSparse());
+        factor.chooseStorage(0.0);
+        assertFalse(factor.isSparse());
+        assertArrayEquals(expected, factor.table);
+    }
+
+    @Test
+    void viewsShareTheTableAndNeverWriteIt() {
+        Factor cpt = NETWORK.getCpt(10);
+        double[] original = cpt.table.clone();
+        Factor view = cpt.view();
+        assertTrue(view.isView() || cpt.variables.size() == 1);
+        assertSame(cpt.table, view.table);
+
+        Factor reduced = view;
+        for (Variable var : cpt.variables) {
+            if (var.id != 10) {
+                reduced = reduced.removeEvidence(var.id, 1);
+            }
+        }
+        Factor copy = new Factor(cpt);
+        Factor expected = copy;
+        for (Variable var : cpt.variables) {
+            if (var.id != 10) {
+                expected = expected.removeEvidence(var.id, 1);
+            }
+        }
+        assertArrayEquals(values(expected), values(reduced));
+
+        reduced.normalize();
+        view.normalize();
+        assertArrayEquals(original, cpt.table);
+    }
+
+    @Test
+    void vectorAndScalarKernelsGiveTheSameTables() {
+        assumeTrue(Factor.isVectorized(), "the Vector API isn't available");
+        Factor f1 = factor(0, 12, 0.0, 4);
+        Factor f2 = factor(6, 12, 0.0, 5);
+        try {
+            Factor.setVectorized(true);
+            Factor vectorJoin = f1.JoinFactor(f2);
+            Factor vectorEliminate = f1.Eliminate(3);
+            Factor vectorFused = Factor.joinAndEliminate(List.of(f1, f2), 8, true);
+            Factor vectorNormalized = new Factor(f1);
+            vectorNormalized.normalize();
+
+            Factor.setVectorized(false);
+            assertArrayEquals(values(f1.JoinFactor(f2)), values(vectorJoin));
+            assertArrayEquals(values(f1.Eliminate(3)), values(vectorEliminate));
+            assertArrayEquals(values(Factor.joinAndEliminate(List.of(f1, f2), 8, true)), values(vectorFused));
+            Factor scalarNormalized = new Factor(f1);
+            scalarNormalized.normalize();
+            // normalize() sums large tables in vector lanes, so only the total may round differently
+            assertArrayEquals(scalarNormalized.table, vectorNormalized.table, 1e-15);
+        } finally {
+            Factor.setVectorized(true);
+        }
+    }
+
+    @Test
+    void variableEliminationAnswersTheSameForEveryStorageAndKernel() {
+        BayesNet network = TestNetworks.withDeterministicRows(40, 4, 0.4, 11);
+        List<Query> queries = TestNetworks.sampledQueries(network, 30, 3, 11);
+        String[] expected = answers(network, queries, 0.0);
+        assertArrayEquals(expected, answers(network, queries, 0.25));
+        assertArrayEquals(expected, answers(network, queries, 0.9));
+        if (Factor.isVectorized()) {
+            try {
+                Factor.setVectorized(false);
+                assertArrayEquals(expected, answers(network, queries, 0.25));
+            } finally {
+                Factor.setVectorized(true);
+            }
+        }
+    }
+
+    // the answers with compatible accounting, whose operations don't depend on how the factors are stored
+    private static String[] answers(BayesNet network, List<Query> queries, double sparseDensity) {
+        VariableElimination variableElimination = new VariableElimination(network, 0);
+        variableElimination.setSparseDensity(sparseDensity);
+        String[] answers = new String[queries.size()];
+        for (int q = 0; q < answers.length; q++) {
+            answers[q] = variableElimination.answer(queries.get(q));
+        }
+        return answers;
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Networks and queries for the tests, built from NetworkGenerator with fixed seeds.
+final class TestNetworks {
+    private TestNetworks() {
+    }
+
+    // A generated network where about 'fraction' of the distributions of every CPT put all their mass on one
+    // outcome, so that evidence and joins give factors with many zero rows, which are stored sparse.
+    static BayesNet withDeterministicRows(int numOfVars, int treewidth, double fraction, long seed) {
+        BayesNet network = NetworkGenerator.generate(numOfVars, 3, 2, treewidth, seed);
+        SplittableRandom random = new SplittableRandom(seed + 1);
+        for (int id = 0; id < network.getNumberOfVariables(); id++) {
+            double[] table = network.getCpt(id).table;
+            int cardinality = network.getVariable(id).numberOfOutcomes;
+            for (int block = 0; block < table.length; block += cardinality) {
+                if (random.nextDouble() < fraction) {
+                    int certain = random.nextInt(cardinality);
+                    for (int k = 0; k < cardinality; k++) {
+                        table[block + k] = k == certain ? 1.0 : 0.0;
+                    }
+                }
+            }
+        }
+        return network;
+    }
+
+    // Queries with 'numOfEvidence' evidence variables other than the query variable, and no elimination order. The
+    // evidence is a forward sample of the network, so it never has probability 0.
+    static List<Query> sampledQueries(BayesNet network, int count, int numOfEvidence, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int numOfVars = network.getNumberOfVariables();
+        List<Query> queries = new ArrayList<>();
+        for (int q = 0; q < count; q++) {
+            int[] sample = forwardSample(network, random);
+            int queryVarId = random.nextInt(numOfVars);
+            int[] evidenceIds = new int[Math.min(numOfEvidence, numOfVars - 1)];
+            for (int i = 0; i < evidenceIds.length; i++) {
+                int id;
+                do {
+                    id = random.nextInt(numOfVars);
+                } while (id == queryVarId || contains(evidenceIds, i, id));
+                evidenceIds[i] = id;
+            }
+            int[] evidenceOutcomes = new int[evidenceIds.length];
+            for (int i = 0; i < evidenceIds.length; i++) {
+                evidenceOutcomes[i] = sample[evidenceIds[i]];
+            }
+            Variable queryVar = network.getVariable(queryVarId);
+            queries.add(new Query(queryVar, random.nextInt(queryVar.numberOfOutcomes), evidenceIds, evidenceOutcomes,
+                    new int[0]));
+        }
+        return queries;
+    }
+
+    // The generated variables come after their parents, so sampling them by id follows the edges.
+    private static int[] forwardSample(BayesNet network, SplittableRandom random) {
+        int[] sample = new int[network.getNumberOfVariables()];
+        for (int id = 0; id < sample.length; id++) {
+            Factor cpt = network.getCpt(id);
+            int block = 0;
+            for (Variable var : cpt.variables) {
+                block = block * var.numberOfOutcomes + (var.id == id ? 0 : sample[var.id]);
+            }
+            double u = random.nextDouble();
+            int cardinality = network.getVariable(id).numberOfOutcomes;
+            int outcome = 0;
+            while (outcome < cardinality - 1 && (u -= cpt.table[block + outcome]) >= 0.0) {
+                outcome++;
+            }
+            sample[id] = outcome;
+        }
+        return sample;
+    }
+
+    private static boolean contains(int[] values, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // "prob,adds,multiplies" split into its numbers
+    static double probability(String answer) {
+        return Double.parseDouble(answer.split(",")[0]);
+    }
+
+    static String operations(String answer) {
+        return answer.substring(answer.indexOf(',') + 1);
+    }
+}